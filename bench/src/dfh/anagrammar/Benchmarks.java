@@ -0,0 +1,96 @@
+package dfh.anagrammar;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import dfh.anagrammar.grammar.BadRuleException;
+import dfh.anagrammar.grammar.Grammar;
+import dfh.anagrammar.grammar.RecursionException;
+import dfh.anagrammar.node.Pipe;
+
+/**
+ * Runs the benchmarks, profiling allocation with JMH's GC profiler unless
+ * some other profiler is requested, and supplies them with the grammars and
+ * word lists of <code>demo_config</code>.
+ * 
+ * @author houghton
+ *
+ */
+public class Benchmarks {
+	public static void main(String[] args) throws Exception {
+		if (!Arrays.asList(args).contains("-prof")) {
+			String[] a = new String[args.length + 2];
+			a[0] = "-prof";
+			a[1] = "gc";
+			System.arraycopy(args, 0, a, 2, args.length);
+			args = a;
+		}
+		org.openjdk.jmh.Main.main(args);
+	}
+
+	/**
+	 * @return the demo configuration directory: the value of the system
+	 *         property <code>anagrammar.demo</code> if it is set, otherwise
+	 *         the first <code>demo_config</code> found in the working
+	 *         directory or one of its ancestors
+	 */
+	static File demoConfig() {
+		String property = System.getProperty("anagrammar.demo");
+		if (property != null)
+			return new File(property);
+		for (File d = new File(System.getProperty("user.dir")).getAbsoluteFile(); d != null; d = d.getParentFile()) {
+			File f = new File(d, "demo_config");
+			if (f.isDirectory())
+				return f;
+		}
+		throw new IllegalStateException("cannot find demo_config; set anagrammar.demo");
+	}
+
+	static List<String> lines(String file) throws IOException {
+		List<String> lines = new ArrayList<>();
+		for (String line : Files.readAllLines(new File(demoConfig(), file).toPath(), StandardCharsets.UTF_8))
+			lines.add(line.trim());
+		return lines;
+	}
+
+	static Pipe grammar(String grammar) throws IOException, BadRuleException, RecursionException {
+		List<String> lines = lines(grammar + ".grammar");
+		return Grammar.parse(lines.toArray(new String[lines.size()]));
+	}
+
+	/**
+	 * @return the word lists of the demo configuration by name
+	 */
+	static Map<String, List<String>> wordLists() throws IOException {
+		Map<String, List<String>> wordLists = new HashMap<>();
+		boolean inLists = false;
+		for (String line : Files.readAllLines(new File(demoConfig(), "config").toPath(), StandardCharsets.UTF_8)) {
+			if (line.startsWith("#") || line.trim().isEmpty())
+				continue;
+			if (!Character.isWhitespace(line.charAt(0))) {
+				inLists = line.startsWith("word_lists:");
+			} else if (inLists && !line.trim().startsWith("#")) {
+				String[] pair = line.trim().split(":\\s*", 2);
+				wordLists.put(pair[0], lines(pair[1]));
+			}
+		}
+		return wordLists;
+	}
+
+	/**
+	 * @return the word lists the grammar uses
+	 */
+	static Map<String, List<String>> wordLists(Pipe p) throws IOException {
+		Map<String, List<String>> all = wordLists(), some = new HashMap<>();
+		for (String list : p.requiredTries())
+			some.put(list, all.get(list));
+		return some;
+	}
+}
@@ -0,0 +1,53 @@
+package dfh.anagrammar;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Counts and translates every word of the surname list.
+ * 
+ * @author houghton
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CharMapBenchmark {
+	private List<String> words;
+	private CharMap charmap;
+
+	@Setup
+	public void setup() throws Exception {
+		words = Benchmarks.wordLists().get("surname");
+		CharMap.Builder b = new CharMap.Builder();
+		b.add(words);
+		charmap = b.build();
+	}
+
+	@Benchmark
+	public void count(Blackhole bh) {
+		for (String w : words)
+			bh.consume(charmap.count(w));
+	}
+
+	@Benchmark
+	public void translate(Blackhole bh) {
+		for (String w : words)
+			bh.consume(charmap.translate(w));
+	}
+}
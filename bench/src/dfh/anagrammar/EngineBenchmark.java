@@ -0,0 +1,61 @@
+package dfh.anagrammar;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import dfh.anagrammar.node.Pipe;
+
+/**
+ * Finds all the anagrams of phrases of increasing length under the demo
+ * grammars, rendering each as the command line interface would.
+ * 
+ * @author houghton
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EngineBenchmark {
+	@Param({ "simple_name", "male_name", "female_name" })
+	public String grammar;
+	@Param({ "ann lee", "john smith", "david houghton" })
+	public String phrase;
+	@Param({ "1", "0" })
+	public int threads;
+
+	private Engine engine;
+
+	@Setup
+	public void setup() throws Exception {
+		Pipe p = Benchmarks.grammar(grammar);
+		int t = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		engine = new Engine(t, -1, false, Benchmarks.wordLists(p), p, new CharMap.Builder());
+	}
+
+	@Benchmark
+	public int run(Blackhole bh) {
+		return engine.run(phrase, new OutputHandler() {
+			@Override
+			public void handle(WorkInProgress wip) {
+				for (List<String> phrase : wip.phrases())
+					bh.consume(String.join(" ", phrase));
+			}
+		});
+	}
+}
@@ -0,0 +1,59 @@
+package dfh.anagrammar;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dfh.anagrammar.grammar.Grammar;
+import dfh.anagrammar.node.Pipe;
+
+/**
+ * Compiles the female name grammar with its repetition bounds raised, since
+ * repetition is unrolled into copies of the repeated nodes.
+ * 
+ * @author houghton
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GrammarBenchmark {
+	@Param({ "2", "8", "32" })
+	public int bound;
+
+	private String[] rules;
+
+	@Setup
+	public void setup() {
+		rules = new String[] { //
+				"name   -> first last?", //
+				"name   -> last", //
+				"first  -> <title> post?", //
+				"first  -> post", //
+				"post   -> <female> middle?", //
+				"post   -> middle", //
+				"middle -> <initial>{1," + bound + "}", //
+				"middle -> <female>{1," + bound + "} <surname>{1," + bound + "}", //
+				"middle -> <surname>{1," + bound + "}", //
+				"last   -> <epithet>? <surname> <suffix>?", //
+		};
+	}
+
+	@Benchmark
+	public Pipe parse() throws Exception {
+		return Grammar.parse(rules);
+	}
+}
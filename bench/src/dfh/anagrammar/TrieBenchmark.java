@@ -0,0 +1,68 @@
+package dfh.anagrammar;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Builds each kind of lexicon out of a demo word list.
+ * 
+ * @author houghton
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrieBenchmark {
+	@Param({ "surname", "female" })
+	public String list;
+
+	private List<String> words;
+	private CharMap charmap;
+	private int[][] translations;
+
+	@Setup
+	public void setup() throws Exception {
+		words = Benchmarks.wordLists().get(list);
+		CharMap.Builder b = new CharMap.Builder();
+		b.add(words);
+		charmap = b.build();
+		translations = new int[words.size()][];
+		for (int i = 0; i < translations.length; i++)
+			translations[i] = charmap.translate(words.get(i));
+	}
+
+	/**
+	 * {@link Trie#add(String, int[], int)} for every word, then
+	 * {@link Trie#done()}
+	 */
+	@Benchmark
+	public Trie trie() {
+		Trie t = new Trie();
+		for (int i = 0; i < translations.length; i++) {
+			if (translations[i] != null)
+				t.add(words.get(i), translations[i], 0);
+		}
+		t.done();
+		return t;
+	}
+
+	@Benchmark
+	public Dawg dawg() {
+		return new Dawg(words, charmap);
+	}
+}
@@ -0,0 +1,56 @@
+package dfh.anagrammar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import dfh.anagrammar.node.Pipe;
+
+/**
+ * Expands into phrases all the anagrams of a phrase collected beforehand.
+ * 
+ * @author houghton
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WorkInProgressBenchmark {
+	private List<WorkInProgress> found;
+
+	@Setup
+	public void setup() throws Exception {
+		Pipe p = Benchmarks.grammar("female_name");
+		Engine e = new Engine(1, -1, false, Benchmarks.wordLists(p), p, new CharMap.Builder());
+		List<WorkInProgress> list = Collections.synchronizedList(new ArrayList<>());
+		e.run("mary jones", new OutputHandler() {
+			@Override
+			public void handle(WorkInProgress wip) {
+				list.add(wip);
+			}
+		});
+		found = new ArrayList<>(list);
+	}
+
+	@Benchmark
+	public void phrases(Blackhole bh) {
+		for (WorkInProgress wip : found)
+			bh.consume(wip.phrases());
+	}
+}
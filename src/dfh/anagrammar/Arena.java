@@ -0,0 +1,77 @@
+package dfh.anagrammar;
+
+import dfh.anagrammar.node.Terminal;
+
+/**
+ * A block of ints in which a worker records the words of the anagrams it
+ * finds and of the prefixes it hands to other workers. Each word is a record
+ * of three ints: where the preceding word is recorded, or -1 if there is none,
+ * the {@link Terminal#index index} of the terminal at which the word was
+ * taken, and the word's entry in the lexicon the search used there. A record only refers to records
+ * in the same block, so anagrams with a common beginning share its records
+ * and a block is reclaimed once no {@link WorkInProgress} refers to it. A
+ * worker fills its block until there is no room left and then starts another.
+ * 
+ * @author houghton
+ *
+ */
+class Arena {
+	/**
+	 * the usual number of records in a block
+	 */
+	static final int BLOCK = 1 << 12;
+	/**
+	 * the lexicon the search used at each terminal, by index
+	 */
+	final Lexicon[] lexicons;
+	final int[] data;
+	private int used = 0;
+
+	/**
+	 * @param lexicons
+	 *            the lexicon the search used at each terminal, by index
+	 * @param records
+	 *            the number of records the block can hold
+	 */
+	Arena(Lexicon[] lexicons, int records) {
+		this.lexicons = lexicons;
+		this.data = new int[3 * records];
+	}
+
+	/**
+	 * @param records
+	 * @return whether there is room for this many more records
+	 */
+	boolean fits(int records) {
+		return used + 3 * records <= data.length;
+	}
+
+	/**
+	 * @return where the new record is
+	 */
+	int add(int previous, int terminal, int entry) {
+		int at = used;
+		data[at] = previous;
+		data[at + 1] = terminal;
+		data[at + 2] = entry;
+		used += 3;
+		return at;
+	}
+
+	/**
+	 * Copy the records of a path from another block.
+	 * 
+	 * @param from
+	 *            the other block
+	 * @param at
+	 *            where the last word of the path is recorded in it; -1 for the
+	 *            empty path
+	 * @return where the last word is recorded in this block
+	 */
+	int copy(Arena from, int at) {
+		if (at == -1)
+			return -1;
+		int previous = copy(from, from.data[at]);
+		return add(previous, from.data[at + 1], from.data[at + 2]);
+	}
+}
@@ -0,0 +1,33 @@
+package dfh.anagrammar;
+
+/**
+ * Receives the output of {@link Engine#batch(java.util.List, int, boolean, BatchHandler)}.
+ * Phrases are identified by their index in the batch. Phrases with the same
+ * letters are searched only once, so each search reports to all the phrases
+ * sharing its letters.
+ *
+ * @author houghton
+ *
+ */
+public interface BatchHandler {
+	/**
+	 * Called on the thread that will handle the output of a search before the
+	 * search begins.
+	 *
+	 * @param phrases
+	 *            the indices of the phrases sharing the search
+	 * @return the handler for the anagrams found
+	 */
+	public OutputHandler handler(int[] phrases);
+
+	/**
+	 * Called on the same thread as {@link #handler(int[])} once the search is
+	 * complete.
+	 *
+	 * @param phrases
+	 *            the indices of the phrases sharing the search
+	 * @param found
+	 *            the number of anagrams handled
+	 */
+	public void done(int[] phrases, int found);
+}
@@ -2,16 +2,133 @@ package dfh.anagrammar;
 
 import java.util.Arrays;
 
+/**
+ * How many of each translated character remain. Where all the characters are
+ * among the first {@link #PACKED} and none occurs more than 127 times, as with
+ * nearly every phrase, the counts are packed a byte apiece into four longs, so
+ * a copy is a handful of words, taking a character is a subtraction whose
+ * borrow shows whether there was one to take, and the characters present are
+ * found a long at a time. Otherwise they are kept in an array. As characters
+ * are translated in order of frequency, even a phrase in an alphabet of more
+ * than {@link #PACKED} characters can usually be packed.
+ *
+ * @author houghton
+ *
+ */
 public class CharCount {
+	/**
+	 * the characters whose counts may be packed are those translated to
+	 * numbers less than this
+	 */
+	static final int PACKED = 32;
+	private static final long HIGH = 0x8080808080808080L;
+	private static final long LOW = 0x7f7f7f7f7f7f7f7fL;
 	int n = 0;
-	final int[] counts;
+	/**
+	 * the counts of characters 0 to 7, 8 to 15, and so on, a byte apiece;
+	 * unused if {@link #counts} is not null
+	 */
+	private long p0, p1, p2, p3;
+	/**
+	 * the counts if they cannot be packed; null if they are
+	 */
+	private int[] counts;
+	/**
+	 * the number of characters
+	 */
+	private final int size;
 
 	CharCount(int countSize) {
-		counts = new int[countSize];
+		size = countSize;
 	}
 
 	CharCount dup() {
-		return new CharCount(n, counts);
+		return new CharCount(this);
+	}
+
+	private CharCount(CharCount cc) {
+		n = cc.n;
+		size = cc.size;
+		p0 = cc.p0;
+		p1 = cc.p1;
+		p2 = cc.p2;
+		p3 = cc.p3;
+		if (cc.counts != null)
+			counts = Arrays.copyOf(cc.counts, cc.counts.length);
+	}
+
+	/**
+	 * @param i
+	 *            translated character
+	 * @return how many there are
+	 */
+	int count(int i) {
+		if (counts != null)
+			return i < counts.length ? counts[i] : 0;
+		return i < PACKED ? (int) (lane(i >>> 3) >>> ((i & 7) << 3)) & 0x7f : 0;
+	}
+
+	/**
+	 * @param l
+	 * @return the counts of characters 8l to 8l + 7, a byte apiece, each no
+	 *         greater than 127
+	 */
+	long lane(int l) {
+		if (counts == null) {
+			switch (l) {
+			case 0:
+				return p0;
+			case 1:
+				return p1;
+			case 2:
+				return p2;
+			case 3:
+				return p3;
+			default:
+				return 0;
+			}
+		}
+		long v = 0;
+		for (int i = 0, c = l * 8; i < 8 && c < counts.length; i++, c++)
+			v |= (long) Math.min(counts[c], 0x7f) << (i << 3);
+		return v;
+	}
+
+	private void lane(int l, long v) {
+		switch (l) {
+		case 0:
+			p0 = v;
+			break;
+		case 1:
+			p1 = v;
+			break;
+		case 2:
+			p2 = v;
+			break;
+		default:
+			p3 = v;
+		}
+	}
+
+	/**
+	 * Add a character; for building the counts of a phrase.
+	 *
+	 * @param i
+	 *            translated character
+	 */
+	void add(int i) {
+		if (counts == null && (i >= PACKED || count(i) == 0x7f)) {
+			// a character that cannot be packed, or too many of one
+			int[] unpacked = new int[size];
+			for (int c = 0; c < size; c++)
+				unpacked[c] = count(c);
+			counts = unpacked;
+		}
+		if (counts != null)
+			counts[i]++;
+		else
+			lane(i >>> 3, lane(i >>> 3) + (1L << ((i & 7) << 3)));
+		n++;
 	}
 
 	/**
@@ -19,42 +136,140 @@ public class CharCount {
 	 * @return whether there are any characters with index i
 	 */
 	boolean has(int i) {
-		return n > 0 && i < counts.length && counts[i] > 0;
+		return n > 0 && count(i) > 0;
 	}
 
 	/**
+	 * @param required
+	 *            bit mask of characters among the first 64
+	 * @return whether there is at least one of each
+	 */
+	boolean hasAll(long required) {
+		if (counts == null)
+			return (required & ~mask()) == 0;
+		for (long m = required; m != 0; m &= m - 1) {
+			if (!has(Long.numberOfTrailingZeros(m)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param need
+	 *            how many of each character are needed
+	 * @return whether there are at least that many of each
+	 */
+	boolean covers(int[] need) {
+		for (int i = 0; i < need.length; i++) {
+			if (count(i) < need[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Decrement the count of a character in place. Undo this with
+	 * {@link #restore(int)}.
+	 *
 	 * @param i
 	 *            translated character to decrement
-	 * @return appropriately decremented duplicate character count, or null if
-	 *         this particular count cannot be decremented
+	 * @return whether there was a character with index i to take
 	 */
-	CharCount decrement(int i) {
-		if (i < counts.length && counts[i] > 0) {
-			CharCount d = dup();
-			d.counts[i]--;
-			d.n--;
-			return d;
-		} else {
-			return null;
+	boolean take(int i) {
+		if (counts != null) {
+			if (i < counts.length && counts[i] > 0) {
+				counts[i]--;
+				n--;
+				return true;
+			}
+			return false;
 		}
+		if (i >= PACKED)
+			return false;
+		int l = i >>> 3;
+		long shift = (i & 7) << 3, v = lane(l) - (1L << shift);
+		// a count of 0 borrows, setting the byte's high bit
+		if ((v & 0x80L << shift) != 0)
+			return false;
+		lane(l, v);
+		n--;
+		return true;
+	}
+
+	/**
+	 * Undo a successful {@link #take(int)}.
+	 *
+	 * @param i
+	 *            translated character to restore
+	 */
+	void restore(int i) {
+		if (counts != null)
+			counts[i]++;
+		else
+			lane(i >>> 3, lane(i >>> 3) + (1L << ((i & 7) << 3)));
+		n++;
+	}
+
+	/**
+	 * @return bit mask of the characters, among the first 64, remaining
+	 */
+	long mask() {
+		if (counts == null)
+			return present(p0) | present(p1) << 8 | present(p2) << 16 | present(p3) << 24;
+		long m = 0;
+		for (int i = 0, lim = Math.min(64, counts.length); i < lim; i++) {
+			if (counts[i] > 0)
+				m |= 1L << i;
+		}
+		return m;
+	}
+
+	/**
+	 * @return a bit for each non-zero byte of a lane: the bytes are no greater
+	 *         than 127, so adding 127 to each sets its high bit just if it is
+	 *         not zero, without carrying into the next, and a multiplication
+	 *         gathers the high bits into the top byte
+	 */
+	private static long present(long lane) {
+		return ((lane + LOW & HIGH) >>> 7) * 0x0102040810204080L >>> 56;
 	}
 
 	boolean empty() {
 		return n == 0;
 	}
 
-	private CharCount(int n, int[] counts) {
-		this.n = n;
-		this.counts = Arrays.copyOf(counts, counts.length);
+	@Override
+	public int hashCode() {
+		long h = lane(0) * 31 + lane(1);
+		h = (h * 31 + lane(2)) * 31 + lane(3);
+		return (int) (h ^ h >>> 32);
 	}
-	
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+		if (!(o instanceof CharCount))
+			return false;
+		CharCount other = (CharCount) o;
+		if (n != other.n)
+			return false;
+		if (counts == null && other.counts == null)
+			return p0 == other.p0 && p1 == other.p1 && p2 == other.p2 && p3 == other.p3;
+		for (int i = 0, lim = Math.max(size, other.size); i < lim; i++) {
+			if (count(i) != other.count(i))
+				return false;
+		}
+		return true;
+	}
+
 	@Override
 	public String toString() {
-		StringBuffer b = new StringBuffer();
+		StringBuilder b = new StringBuilder();
 		b.append('[');
-		for (int i = 0; i < counts.length - 1; i++)
-			b.append(counts[i]).append(',');
-		b.append(counts[counts.length - 1]).append("](").append(n).append(')');
+		for (int i = 0; i < size - 1; i++)
+			b.append(count(i)).append(',');
+		b.append(count(size - 1)).append("](").append(n).append(')');
 		return b.toString();
 	}
 }
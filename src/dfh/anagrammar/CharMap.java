@@ -12,7 +12,6 @@ public class CharMap {
 	private final Map<Character, Integer> map;
 	private final Normalizer normalizer;
 	private final int countSize;
-	private CharCount cc;
 
 	public interface Normalizer {
 		/**
@@ -21,9 +20,22 @@ public class CharMap {
 		 *         character
 		 */
 		char normalize(char c);
+
+		/**
+		 * @return a name for this way of normalizing, recorded in a
+		 *         {@link LexiconIndex} compiled with it
+		 */
+		default String name() {
+			return getClass().getName();
+		}
 	}
 
 	public static final Normalizer BASIC_NORMALIZER = new Normalizer() {
+		@Override
+		public String name() {
+			return "basic";
+		}
+
 		@Override
 		public char normalize(char c) {
 			int i = c;
@@ -95,6 +107,33 @@ public class CharMap {
 		this.countSize = countSize;
 	}
 
+	/**
+	 * Recreate a character map from its {@link #order()}.
+	 */
+	static CharMap fromOrder(Normalizer normalizer, char[] order) {
+		Map<Character, Integer> m = new HashMap<>();
+		for (int i = 0; i < order.length; i++)
+			m.put(order[i], i);
+		return new CharMap(normalizer, m, order.length);
+	}
+
+	/**
+	 * @return how characters are normalized before they are translated
+	 */
+	Normalizer normalizer() {
+		return normalizer;
+	}
+
+	/**
+	 * @return the normalized characters in order of their translations
+	 */
+	char[] order() {
+		char[] order = new char[countSize];
+		for (Map.Entry<Character, Integer> e : map.entrySet())
+			order[e.getValue()] = e.getKey();
+		return order;
+	}
+
 	public int[] translate(String word) {
 		int[] t = new int[word.length()];
 		int offset = 0;
@@ -111,7 +150,7 @@ public class CharMap {
 	}
 
 	public CharCount count(String word) {
-		cc = new CharCount(countSize);
+		CharCount cc = new CharCount(countSize);
 		for (int i = 0; i < word.length(); i++) {
 			char c = normalizer.normalize(word.charAt(i));
 			if (c == 0)
@@ -119,8 +158,7 @@ public class CharMap {
 			Integer idx = map.get(c);
 			if (idx == null)
 				return null;
-			cc.counts[idx]++;
-			cc.n++;
+			cc.add(idx);
 		}
 		return cc;
 	}
@@ -131,7 +169,7 @@ public class CharMap {
 	 * @return counts for whole phrase
 	 */
 	public CharCount count(List<String> words) {
-		cc = new CharCount(countSize);
+		CharCount cc = new CharCount(countSize);
 		for (String word : words) {
 			for (int i = 0; i < word.length(); i++) {
 				char c = normalizer.normalize(word.charAt(i));
@@ -140,8 +178,7 @@ public class CharMap {
 				Integer idx = map.get(c);
 				if (idx == null)
 					return null;
-				cc.counts[idx]++;
-				cc.n++;
+				cc.add(idx);
 			}
 		}
 		return cc;
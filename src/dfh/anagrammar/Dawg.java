@@ -0,0 +1,387 @@
+package dfh.anagrammar;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal acyclic word graph: a trie in which all nodes with identical
+ * sets of completions are merged, so shared suffixes are stored only once.
+ * This is built in a single pass over the words in sorted order by Daciuk's
+ * incremental algorithm.
+ *
+ * <p>
+ * Since a node may be reached by many words, it cannot hold a word's surface
+ * forms. Instead, each edge records how many words sort before those
+ * completed through it, and the sum of these along a path is the rank of the
+ * word, which serves as its entry number.
+ *
+ * @author houghton
+ *
+ */
+public class Dawg implements Lexicon {
+	/**
+	 * offset of each node's edges in the edge arrays; one longer than the
+	 * number of nodes
+	 */
+	final int[] first;
+	final char[] label;
+	final int[] target;
+	final int[] offset;
+	final boolean[] terminal;
+	final int root;
+	/**
+	 * offset of each entry's surface forms in {@link #words}; one longer than
+	 * the number of entries
+	 */
+	final int[] valueStart;
+	final String[] words;
+	/**
+	 * per node summaries; see {@link Trie#feasible(CharCount)}
+	 */
+	final int[] minLength;
+	final long[] required;
+	final int[] needIndex;
+	final int[][] needs;
+	final int maxLength;
+	final long letters;
+
+	/**
+	 * A word and its translation.
+	 */
+	private static class Translated {
+		final String word;
+		final int[] translation;
+
+		Translated(String word, int[] translation) {
+			this.word = word;
+			this.translation = translation;
+		}
+	}
+
+	private static final Comparator<Translated> ORDER = new Comparator<Translated>() {
+		@Override
+		public int compare(Translated o1, Translated o2) {
+			int[] a = o1.translation, b = o2.translation;
+			for (int i = 0, lim = Math.min(a.length, b.length); i < lim; i++) {
+				if (a[i] != b[i])
+					return a[i] - b[i];
+			}
+			return a.length - b.length;
+		}
+	};
+
+	/**
+	 * A node on the path of the most recently added word, still open to new
+	 * edges.
+	 */
+	private static class Pending {
+		boolean terminal;
+		int[] labels = new int[2];
+		int[] targets = new int[2];
+		int edges;
+
+		void add(int label, int target) {
+			if (edges == labels.length) {
+				labels = Arrays.copyOf(labels, edges * 2);
+				targets = Arrays.copyOf(targets, edges * 2);
+			}
+			labels[edges] = label;
+			targets[edges++] = target;
+		}
+	}
+
+	/**
+	 * Accumulates registered nodes. Nodes are registered only after all their
+	 * children, so the children of a node always have lower numbers.
+	 */
+	private static class Register {
+		final Map<IntBuffer, Integer> register = new HashMap<>();
+		int[] first = new int[1024];
+		boolean[] terminal = new boolean[1024];
+		int[] label = new int[1024];
+		int[] target = new int[1024];
+		int nodes, edges;
+
+		int register(Pending p) {
+			int[] signature = new int[p.edges * 2 + 1];
+			signature[0] = p.terminal ? 1 : 0;
+			for (int i = 0; i < p.edges; i++) {
+				signature[i * 2 + 1] = p.labels[i];
+				signature[i * 2 + 2] = p.targets[i];
+			}
+			IntBuffer key = IntBuffer.wrap(signature);
+			Integer id = register.get(key);
+			if (id == null) {
+				id = nodes++;
+				if (id == first.length) {
+					first = Arrays.copyOf(first, id * 2);
+					terminal = Arrays.copyOf(terminal, id * 2);
+				}
+				first[id] = edges;
+				terminal[id] = p.terminal;
+				if (edges + p.edges > label.length) {
+					int size = Math.max(label.length * 2, edges + p.edges);
+					label = Arrays.copyOf(label, size);
+					target = Arrays.copyOf(target, size);
+				}
+				System.arraycopy(p.labels, 0, label, edges, p.edges);
+				System.arraycopy(p.targets, 0, target, edges, p.edges);
+				edges += p.edges;
+				register.put(key, id);
+			}
+			return id;
+		}
+	}
+
+	/**
+	 * @param words
+	 *            the words of a list, in any order
+	 * @param charmap
+	 *            translates the words
+	 */
+	public Dawg(Collection<String> words, CharMap charmap) {
+		this(translate(words, charmap));
+	}
+
+	/**
+	 * @param translations
+	 *            words already translated
+	 * @param forms
+	 *            the surface forms of each
+	 */
+	Dawg(int[][] translations, String[][] forms) {
+		this(pair(translations, forms));
+	}
+
+	private static List<Translated> translate(Collection<String> words, CharMap charmap) {
+		List<Translated> list = new ArrayList<>(words.size());
+		for (String w : words) {
+			int[] translation = charmap.translate(w);
+			if (translation != null)
+				list.add(new Translated(w, translation));
+		}
+		return list;
+	}
+
+	private static List<Translated> pair(int[][] translations, String[][] forms) {
+		List<Translated> list = new ArrayList<>(translations.length);
+		for (int i = 0; i < translations.length; i++) {
+			for (String w : forms[i])
+				list.add(new Translated(w, translations[i]));
+		}
+		return list;
+	}
+
+	private Dawg(List<Translated> list) {
+		list.sort(ORDER);
+
+		// Daciuk et al.'s algorithm for sorted input: only the path of the
+		// previous word is open; when the next word diverges from it, the
+		// nodes below the divergence are replaced by registered equivalents
+		Register r = new Register();
+		List<String> wordList = new ArrayList<>(list.size());
+		List<Integer> starts = new ArrayList<>();
+		Pending[] path = new Pending[16];
+		path[0] = new Pending();
+		int[] previous = null;
+		for (Translated t : list) {
+			int[] translation = t.translation;
+			if (Arrays.equals(previous, translation)) {
+				// another surface form of the previous entry
+				addForm(wordList, starts.get(starts.size() - 1), t.word);
+				continue;
+			}
+			int common = 0;
+			if (previous != null) {
+				int lim = Math.min(previous.length, translation.length);
+				while (common < lim && previous[common] == translation[common])
+					common++;
+				close(r, path, previous, common);
+			}
+			if (translation.length >= path.length)
+				path = Arrays.copyOf(path, translation.length * 2);
+			for (int i = common + 1; i <= translation.length; i++)
+				path[i] = new Pending();
+			path[translation.length].terminal = true;
+			starts.add(wordList.size());
+			wordList.add(t.word);
+			previous = translation;
+		}
+		if (previous != null)
+			close(r, path, previous, 0);
+		root = r.register(path[0]);
+		starts.add(wordList.size());
+
+		int size = r.nodes;
+		first = Arrays.copyOf(r.first, size + 1);
+		first[size] = r.edges;
+		terminal = Arrays.copyOf(r.terminal, size);
+		label = new char[r.edges];
+		for (int i = 0; i < r.edges; i++)
+			label[i] = (char) r.label[i];
+		target = Arrays.copyOf(r.target, r.edges);
+		valueStart = new int[starts.size()];
+		for (int i = 0; i < valueStart.length; i++)
+			valueStart[i] = starts.get(i);
+		this.words = wordList.toArray(new String[wordList.size()]);
+
+		// word counts give the edge offsets; as children precede their parents
+		// a single ascending pass suffices for this and the summaries
+		offset = new int[r.edges];
+		minLength = new int[size];
+		required = new long[size];
+		needIndex = new int[size];
+		int[] maxLengths = new int[size];
+		long[] letterMasks = new long[size];
+		int[][] needVectors = new int[size][];
+		Map<IntBuffer, Integer> needMap = new HashMap<>();
+		List<int[]> needList = new ArrayList<>();
+		int[] count = new int[size];
+		for (int i = 0; i < size; i++) {
+			int c = terminal[i] ? 1 : 0;
+			int lo = Integer.MAX_VALUE, hi = terminal[i] ? 0 : -1;
+			long req = -1L, let = 0;
+			int[] n = null;
+			for (int e = first[i]; e < first[i + 1]; e++) {
+				int t = target[e], l = label[e];
+				offset[e] = c;
+				c += count[t];
+				lo = Math.min(lo, minLength[t] + 1);
+				hi = Math.max(hi, maxLengths[t] + 1);
+				req &= required[t] | Trie.bit(l);
+				let |= letterMasks[t] | Trie.bit(l);
+				n = Trie.meet(n, Trie.needVector(needVectors[t], required[t], l));
+			}
+			count[i] = c;
+			maxLengths[i] = hi;
+			letterMasks[i] = let;
+			if (terminal[i]) {
+				minLength[i] = 0;
+				required[i] = 0;
+			} else if (n == null) { // an empty list
+				minLength[i] = Integer.MAX_VALUE;
+				required[i] = 0;
+			} else {
+				minLength[i] = lo;
+				required[i] = req;
+				needVectors[i] = Trie.informative(n);
+			}
+			if (needVectors[i] == null) {
+				needIndex[i] = -1;
+			} else {
+				IntBuffer key = IntBuffer.wrap(needVectors[i]);
+				Integer j = needMap.get(key);
+				if (j == null) {
+					j = needList.size();
+					needList.add(needVectors[i]);
+					needMap.put(key, j);
+				}
+				needIndex[i] = j;
+			}
+		}
+		needs = needList.toArray(new int[needList.size()][]);
+		maxLength = maxLengths[root];
+		letters = letterMasks[root];
+	}
+
+	/**
+	 * Add a surface form to the last entry unless it is already there; see
+	 * {@link Trie#add(String, int[], int)}.
+	 */
+	private static void addForm(List<String> wordList, int start, String word) {
+		for (int i = start; i < wordList.size(); i++) {
+			if (wordList.get(i) == word)
+				return;
+		}
+		wordList.add(word);
+	}
+
+	/**
+	 * Register the open nodes on the path of the previous word below the
+	 * given depth, attaching each to its parent.
+	 */
+	private static void close(Register r, Pending[] path, int[] previous, int depth) {
+		for (int i = previous.length; i > depth; i--) {
+			int id = r.register(path[i]);
+			path[i - 1].add(previous[i - 1], id);
+			path[i] = null;
+		}
+	}
+
+	@Override
+	public int root() {
+		return root;
+	}
+
+	@Override
+	public int size() {
+		return terminal.length;
+	}
+
+	@Override
+	public int children(int node) {
+		return first[node + 1] - first[node];
+	}
+
+	@Override
+	public int edge(int node, int k) {
+		return label[first[node] + k];
+	}
+
+	@Override
+	public int child(int node, int k) {
+		return target[first[node] + k];
+	}
+
+	@Override
+	public int offset(int node, int k) {
+		return offset[first[node] + k];
+	}
+
+	@Override
+	public boolean terminal(int node) {
+		return terminal[node];
+	}
+
+	@Override
+	public int entry(int node) {
+		return 0;
+	}
+
+	@Override
+	public int valueCount(int entry) {
+		return valueStart[entry + 1] - valueStart[entry];
+	}
+
+	@Override
+	public String value(int entry, int k) {
+		return words[valueStart[entry] + k];
+	}
+
+	@Override
+	public boolean feasible(int node, CharCount cc) {
+		int i = needIndex[node];
+		return Trie.feasible(cc, minLength[node], required[node], i == -1 ? null : needs[i]);
+	}
+
+	@Override
+	public int minLength() {
+		return minLength[root];
+	}
+
+	@Override
+	public int maxLength() {
+		return maxLength;
+	}
+
+	@Override
+	public long letters() {
+		return letters;
+	}
+}
@@ -1,22 +1,46 @@
 package dfh.anagrammar;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Collection;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.BlockingDeque;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import dfh.anagrammar.CharMap.Builder;
-import dfh.anagrammar.node.End;
+import dfh.anagrammar.node.Loop;
 import dfh.anagrammar.node.MissingWordlistException;
 import dfh.anagrammar.node.Node;
 import dfh.anagrammar.node.Pipe;
@@ -29,208 +53,2015 @@ import dfh.anagrammar.node.Terminal;
  *
  */
 public class Engine {
-	private static final Comparator<Object> RANDOM_COMPARATOR = new Comparator<Object>() {
-		@Override
-		public int compare(Object o1, Object o2) {
-			return Math.random() > 0.5 ? 1 : -1;
-		}
-	};
+	/**
+	 * Marks the end of the output of a search.
+	 */
+	private static final WorkInProgress DONE = new WorkInProgress(null, -1);
+	/**
+	 * A task forks off its successors while fewer than this many tasks it has
+	 * already queued remain unclaimed by idle workers.
+	 */
+	private static final int SURPLUS = 2;
+	/**
+	 * A task reports the nodes it has expanded, to be checked against the
+	 * budget given by {@link Limits#expansions(long)}, this many at a time.
+	 */
+	private static final int BATCH = 1 << 10;
+	/**
+	 * A search is first tried on the calling thread and is handed to the
+	 * workers only if it expands this many nodes or finds this many anagrams
+	 * before it is done. Handing off a smaller search costs more than it
+	 * saves, and a larger one loses little by starting over.
+	 */
+	static final int PROBE = 1 << 14;
+	/**
+	 * A phrase of no more than this many letters is searched with the full
+	 * lexicons, as finding the words that fit into it costs more than it
+	 * saves.
+	 */
+	static final int SHORT = 8;
+	/**
+	 * A phrase of at least this many letters takes long enough to search that
+	 * making a {@link Projector} for it pays for itself; a shorter one longer
+	 * than {@link #SHORT} uses a projector only if one is already made.
+	 */
+	static final int PROJECTED = 14;
+	/**
+	 * stops searches whose time is up
+	 */
+	private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, r -> {
+		Thread t = new Thread(r, "anagrammar deadlines");
+		t.setDaemon(true);
+		return t;
+	});
+	static {
+		TIMER.setRemoveOnCancelPolicy(true);
+	}
+	/**
+	 * Marks the end of the output of a rendering search.
+	 */
+	private static final OutputBuffer FINISHED = new OutputBuffer(0);
+	/**
+	 * A worker hands off its buffer of rendered anagrams once it holds this
+	 * many bytes.
+	 */
+	private static final int BUFFER_SIZE = 1 << 16;
+	/**
+	 * the default for {@link #memoize(int)}
+	 */
+	public static final int MEMO_CAPACITY = 1 << 18;
 	private final CharMap charmap;
 	private final int threads;
 	private final Pipe dfa;
-	private final AtomicBoolean running = new AtomicBoolean(false);
+	/**
+	 * the terminals of the network, by index
+	 */
+	private final Terminal[] terminals;
+	/**
+	 * the workers every search shares; null until first needed
+	 */
+	private volatile ForkJoinPool pool;
+	/**
+	 * the projector of each lexicon large enough to project, made when first
+	 * needed
+	 */
+	private final Map<Lexicon, Projector> projectors = new ConcurrentHashMap<>();
 	private final int sample;
-	private final boolean random, sampling;
+	private final boolean random;
 	private final AtomicInteger found = new AtomicInteger();
+	/**
+	 * the number of phrases being processed
+	 */
+	private final AtomicInteger active = new AtomicInteger();
+	/**
+	 * the most words the suffix problems a search remembers may hold; if not
+	 * positive, searches are not memoized
+	 */
+	private volatile int memoCapacity = MEMO_CAPACITY;
 
+	/**
+	 * Builds a minimal {@link Dawg} out of each of the given word lists.
+	 */
 	public Engine(int threads, int sample, Boolean random, Map<String, List<String>> wordLists, Pipe dfa, Builder b)
 			throws MissingWordlistException {
 		this.threads = threads;
 		this.sample = sample;
-		this.sampling = sample > 0;
 		this.random = random;
 		this.charmap = makeCharMap(wordLists.values(), b);
 		this.dfa = dfa;
-		Map<String, Trie> tries = makeTries(wordLists);
-		dfa.attachTries(tries);
+		dfa.attachTries(makeTries(wordLists));
+		this.terminals = dfa.terminals();
+	}
+
+	/**
+	 * Runs against lexicons already built with the given {@link CharMap}.
+	 */
+	public Engine(int threads, int sample, boolean random, CharMap charmap, Map<String, ? extends Lexicon> lexicons,
+			Pipe dfa) throws MissingWordlistException {
+		this.threads = threads;
+		this.sample = sample;
+		this.random = random;
+		this.charmap = charmap;
+		this.dfa = dfa;
+		dfa.attachTries(lexicons);
+		this.terminals = dfa.terminals();
 	}
 
 	/**
-	 * Process input phrase in a synchronized fashion, notifying all threads
-	 * waiting on this object upon completion.
+	 * Process input phrase with the sample size and order given to the
+	 * constructor.
 	 * 
 	 * @param inputPhrase
 	 * @param handler
+	 * @return the number of anagrams handled
 	 */
-	public synchronized void run(String inputPhrase, OutputHandler handler) {
-		running.set(true);
+	public int run(String inputPhrase, OutputHandler handler) {
+		return run(inputPhrase, sample, random, handler);
+	}
 
-		CharCount cc = charmap.count(inputPhrase);
-		BlockingDeque<WorkInProgress> deque = new LinkedBlockingDeque<>();
-		for (Node n : edges(dfa.in)) {
-			if (n instanceof Terminal) {
-				Terminal term = (Terminal) n;
-				WorkInProgress wip = new WorkInProgress(term, cc);
-				deque.offerLast(wip);
+	/**
+	 * Process input phrase. The handler is called on the calling thread. Any
+	 * number of phrases may be processed at once.
+	 * 
+	 * <p>
+	 * The search runs in a {@link ForkJoinPool} the engine keeps for all its
+	 * searches. Each task explores its subtree depth-first and only forks a
+	 * successor off as a separate task when the pool has idle workers looking
+	 * for something to steal. Completion is detected by joining the task tree,
+	 * so the workers share no activity counter. A search is first tried on
+	 * the calling thread, though, and reaches the pool only if it proves too
+	 * big to finish there; see {@link #PROBE}.
+	 * 
+	 * @param inputPhrase
+	 * @param sample
+	 *            the maximum number of anagrams to handle; if not positive,
+	 *            all are handled
+	 * @param random
+	 *            whether to generate anagrams in random order; with a sample,
+	 *            it is drawn uniformly from all the anagrams
+	 * @param handler
+	 * @return the number of anagrams handled
+	 */
+	public int run(String inputPhrase, int sample, boolean random, OutputHandler handler) {
+		return run(inputPhrase, sample, random, null, handler);
+	}
+
+	/**
+	 * Process input phrase within limits. The handler is called on the
+	 * calling thread. Once a limit is reached the search stops, no more
+	 * anagrams are handled, and the limits' {@link Limits#status() status}
+	 * says which it was.
+	 * 
+	 * @param inputPhrase
+	 * @param sample
+	 *            the maximum number of anagrams to handle; if not positive,
+	 *            all are handled
+	 * @param random
+	 *            whether to generate anagrams in random order; with a sample,
+	 *            it is drawn uniformly from all the anagrams
+	 * @param limits
+	 *            bounds on the search; null if there are none
+	 * @param handler
+	 * @return the number of anagrams handled
+	 */
+	public int run(String inputPhrase, int sample, boolean random, Limits limits, OutputHandler handler) {
+		active.incrementAndGet();
+		try {
+			int n = new Search(sample, random, limits).run(charmap.count(inputPhrase), handler);
+			found.set(n);
+			return n;
+		} finally {
+			active.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Process many phrases at once, sharing the engine's pool of workers among
+	 * them. Phrases with the same letters are searched only once. Up to
+	 * {@link #threads} searches run at a time, each handling its output on a
+	 * thread of its own, so a batch of short phrases, each of which is
+	 * searched on its thread, keeps every processor busy with a search apiece,
+	 * while a long phrase still has its search spread over whatever workers
+	 * are idle.
+	 * 
+	 * <p>
+	 * These threads are made for the batch rather than taken from the pool
+	 * because the handler may block, as it does when writing to a slow
+	 * stream, and a worker blocked on output would stall the searches that
+	 * share the pool. Starting them costs little beside a batch's searches.
+	 * 
+	 * @param phrases
+	 * @param sample
+	 *            the maximum number of anagrams to handle per phrase; if not
+	 *            positive, all are handled
+	 * @param random
+	 *            whether to generate anagrams in random order; with a sample,
+	 *            it is drawn uniformly from all the anagrams
+	 * @param handler
+	 *            receives the anagrams of each phrase
+	 * @throws InterruptedException
+	 */
+	public void batch(List<String> phrases, int sample, boolean random, BatchHandler handler)
+			throws InterruptedException {
+		// phrases containing characters not in any word list have a null count
+		// and so are collected together as well
+		Map<CharCount, List<Integer>> groups = new LinkedHashMap<>();
+		for (int i = 0; i < phrases.size(); i++) {
+			CharCount cc = charmap.count(phrases.get(i));
+			List<Integer> group = groups.get(cc);
+			if (group == null) {
+				group = new ArrayList<>(1);
+				groups.put(cc, group);
 			}
+			group.add(i);
 		}
-		if (deque.isEmpty()) {
-			running.set(false);
-			notifyAll();
+		if (groups.isEmpty())
 			return;
+		active.incrementAndGet();
+		// not the pool: the handlers may block; see above
+		ExecutorService searches = Executors.newFixedThreadPool(Math.min(threads, groups.size()));
+		try {
+			List<Future<?>> futures = new ArrayList<>(groups.size());
+			for (Entry<CharCount, List<Integer>> e : groups.entrySet()) {
+				CharCount cc = e.getKey();
+				int[] group = new int[e.getValue().size()];
+				for (int i = 0; i < group.length; i++)
+					group[i] = e.getValue().get(i);
+				futures.add(searches.submit(() -> {
+					OutputHandler h = handler.handler(group);
+					handler.done(group, new Search(sample, random, null).run(cc, h));
+				}));
+			}
+			for (Future<?> f : futures) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof RuntimeException)
+						throw (RuntimeException) e.getCause();
+					throw new RuntimeException(e.getCause());
+				}
+			}
+		} finally {
+			searches.shutdownNow();
+			active.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Process input phrase, writing out the anagrams found. Rather than
+	 * passing them to a single thread to handle, each worker renders the
+	 * anagrams it finds into a buffer of its own, and only full buffers are
+	 * passed to the calling thread, which writes them. Output therefore keeps
+	 * pace with the search however many workers there are. The order of the
+	 * anagrams in the output is arbitrary.
+	 * 
+	 * @param inputPhrase
+	 * @param sample
+	 *            the maximum number of anagrams to render; if not positive, all
+	 *            are rendered
+	 * @param random
+	 *            whether to generate anagrams in random order; with a sample,
+	 *            it is drawn uniformly from all the anagrams
+	 * @param renderer
+	 *            renders each anagram; it is called concurrently
+	 * @param out
+	 *            where to write
+	 * @return the number of phrases written, as reported by the renderer
+	 * @throws IOException
+	 *             if the output cannot be written, in which case the search
+	 *             is abandoned
+	 */
+	public long render(String inputPhrase, int sample, boolean random, Renderer renderer, OutputStream out)
+			throws IOException {
+		return render(inputPhrase, sample, random, null, renderer, out);
+	}
+
+	/**
+	 * Process input phrase within limits, writing out the anagrams found as
+	 * {@link #render(String, int, boolean, Renderer, OutputStream)} does. Once
+	 * a limit is reached the search stops, what has been rendered is written,
+	 * and the limits' {@link Limits#status() status} says which it was.
+	 * 
+	 * @param inputPhrase
+	 * @param sample
+	 *            the maximum number of anagrams to render; if not positive, all
+	 *            are rendered
+	 * @param random
+	 *            whether to generate anagrams in random order; with a sample,
+	 *            it is drawn uniformly from all the anagrams
+	 * @param limits
+	 *            bounds on the search; null if there are none
+	 * @param renderer
+	 *            renders each anagram; it is called concurrently
+	 * @param out
+	 *            where to write
+	 * @return the number of phrases written, as reported by the renderer
+	 * @throws IOException
+	 *             if the output cannot be written, in which case the search
+	 *             is abandoned
+	 */
+	public long render(String inputPhrase, int sample, boolean random, Limits limits, Renderer renderer,
+			OutputStream out) throws IOException {
+		active.incrementAndGet();
+		try {
+			return new Rendering(sample, random, limits, renderer).run(charmap.count(inputPhrase), out);
+		} finally {
+			active.decrementAndGet();
 		}
+	}
 
-		BlockingQueue<WorkInProgress> queue = new LinkedBlockingQueue<>();
-		End e = (End) dfa.out;
-		e.setOutput(queue);
-		AtomicInteger activityCounter = new AtomicInteger(deque.size());
-		found.set(0);
+	/**
+	 * Make the anagrams of a phrase available to any number of subscribers.
+	 * Each subscription runs a search of its own, which begins at once and
+	 * proceeds only as fast as the subscriber requests anagrams, so however
+	 * slow the subscriber the anagrams found do not accumulate. The
+	 * subscriber's methods are called on the workers, never concurrently.
+	 * Cancelling the subscription stops the search.
+	 * 
+	 * @param inputPhrase
+	 * @param sample
+	 *            the maximum number of anagrams to deliver; if not positive,
+	 *            all are delivered
+	 * @param random
+	 *            whether to generate anagrams in random order; with a sample,
+	 *            it is drawn uniformly from all the anagrams
+	 * @return a publisher of the anagrams
+	 */
+	public Flow.Publisher<WorkInProgress> publisher(String inputPhrase, int sample, boolean random) {
+		return publisher(inputPhrase, sample, random, null);
+	}
 
-		List<Thread> threadsToKill = new ArrayList<>(threads + 1);
+	/**
+	 * Make the anagrams of a phrase available as
+	 * {@link #publisher(String, int, boolean)} does, each search stopping
+	 * once a limit is reached, at which point the subscriber is told the
+	 * search is complete and the limits' {@link Limits#status() status} says
+	 * which limit it was. As limits serve one search at a time, the publisher
+	 * should then have only one subscriber at a time.
+	 * 
+	 * @param inputPhrase
+	 * @param sample
+	 *            the maximum number of anagrams to deliver; if not positive,
+	 *            all are delivered
+	 * @param random
+	 *            whether to generate anagrams in random order; with a sample,
+	 *            it is drawn uniformly from all the anagrams
+	 * @param limits
+	 *            bounds on each search; null if there are none
+	 * @return a publisher of the anagrams
+	 */
+	public Flow.Publisher<WorkInProgress> publisher(String inputPhrase, int sample, boolean random, Limits limits) {
+		CharCount cc = charmap.count(inputPhrase);
+		return new Flow.Publisher<WorkInProgress>() {
+			@Override
+			public void subscribe(Flow.Subscriber<? super WorkInProgress> subscriber) {
+				new Publication(Objects.requireNonNull(subscriber), cc, sample, random, limits).start();
+			}
+		};
+	}
 
-		for (int i = 0; i < threads; i++) {
-			Thread t2 = new Thread(() -> {
-				while (true) {
+	/**
+	 * Count the anagrams of a phrase without generating them. Each anagram is
+	 * counted once for each combination of the surface forms of its words, so
+	 * the count is that of the phrases the anagrams expand into. The count is
+	 * made by dynamic programming over suffix problems -- see
+	 * {@link #memoize(int)} -- the count of a problem being the sum over the
+	 * words that may begin there of the number of surface forms of the word
+	 * times the count of the problem that follows.
+	 * 
+	 * @param inputPhrase
+	 * @return the number of phrases
+	 */
+	public BigInteger count(String inputPhrase) {
+		CharCount cc = charmap.count(inputPhrase);
+		if (cc == null)
+			return BigInteger.ZERO;
+		active.incrementAndGet();
+		try {
+			Map<Key, BigInteger> memo = new ConcurrentHashMap<>();
+			Lexicon[] lexicons = lexicons(cc);
+			return pool().invoke(new RecursiveTask<BigInteger>() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected BigInteger compute() {
+					List<Count> counts = new ArrayList<>();
+					for (Node n : dfa.in.edges) {
+						if (n instanceof Terminal) {
+							Terminal term = (Terminal) n;
+							if (reachable(lexicons, term, 1, cc))
+								counts.add(new Count(term, 1, cc, 1, true, memo, lexicons, null));
+						}
+					}
+					BigInteger total = BigInteger.ZERO;
+					for (Count x : invokeAll(counts))
+						total = total.add(x.getRawResult());
+					return total;
+				}
+			});
+		} finally {
+			active.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the workers every search shares, started when first needed;
+	 *         they are daemon threads, and idle ones expire
+	 */
+	private ForkJoinPool pool() {
+		ForkJoinPool p = pool;
+		if (p == null) {
+			synchronized (this) {
+				p = pool;
+				if (p == null)
+					pool = p = new ForkJoinPool(threads);
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * @param cc
+	 *            the characters of a phrase
+	 * @return the lexicon of each terminal, by index, cut down to the words
+	 *         that fit into the phrase; see {@link Projector}. The search of
+	 *         a short phrase costs less than finding those words, so it gets
+	 *         the full lexicons, as does any terminal whose lexicon is small,
+	 *         or whose projector is not yet made and would cost more to make
+	 *         than this search saves; see {@link #PROJECTED}. A projector,
+	 *         once made, serves every later phrase the engine searches.
+	 */
+	private Lexicon[] lexicons(CharCount cc) {
+		Lexicon[] lexicons = new Lexicon[terminals.length];
+		Map<Lexicon, Lexicon> projected = new HashMap<>();
+		for (int i = 0; i < lexicons.length; i++) {
+			Lexicon base = terminals[i].trie;
+			if (cc.n <= SHORT || base.size() < Projector.MIN_SIZE) {
+				lexicons[i] = base;
+				continue;
+			}
+			Lexicon p = projected.get(base);
+			if (p == null) {
+				Projector projector = cc.n >= PROJECTED ? projectors.computeIfAbsent(base, Projector::new)
+						: projectors.get(base);
+				p = projector == null ? base : projector.project(cc);
+				projected.put(base, p);
+			}
+			lexicons[i] = p;
+		}
+		return lexicons;
+	}
+
+	/**
+	 * Counts the phrases, or the anagrams, finishing an anagram from some
+	 * point, times a multiplier.
+	 */
+	private static class Count extends RecursiveTask<BigInteger> {
+		private static final long serialVersionUID = 1L;
+		private final Terminal term;
+		private final int repeats;
+		private final CharCount cc;
+		private final long multiplier;
+		/**
+		 * whether each anagram counts once for each combination of the surface
+		 * forms of its words, rather than once
+		 */
+		private final boolean phrases;
+		private final Map<Key, BigInteger> memo;
+		/**
+		 * the lexicon of each terminal, by index
+		 */
+		private final Lexicon[] lexicons;
+		/**
+		 * the search the count is for, whose limits it observes; null if
+		 * there is none
+		 */
+		private final Search search;
+
+		Count(Terminal term, int repeats, CharCount cc, long multiplier, boolean phrases, Map<Key, BigInteger> memo,
+				Lexicon[] lexicons, Search search) {
+			this.term = term;
+			this.repeats = repeats;
+			this.cc = cc;
+			this.multiplier = multiplier;
+			this.phrases = phrases;
+			this.memo = memo;
+			this.lexicons = lexicons;
+			this.search = search;
+		}
+
+		@Override
+		protected BigInteger compute() {
+			BigInteger b = count(term, repeats, cc);
+			return multiplier == 1 ? b : b.multiply(BigInteger.valueOf(multiplier));
+		}
+
+		/**
+		 * @param term
+		 *            a node at which a word is about to begin
+		 * @param repeats
+		 *            the words taken there in a row, counting this one
+		 * @param cc
+		 *            the characters remaining, which must not change
+		 */
+		private BigInteger count(Terminal term, int repeats, CharCount cc) {
+			Key key = new Key(term, repeats, cc);
+			BigInteger total = memo.get(key);
+			if (total != null)
+				return total;
+			if (search != null && !search.running.get())
+				return BigInteger.ZERO;
+			total = BigInteger.ZERO;
+			Lexicon lexicon = lexicons[term.index];
+			Words words = new Words();
+			words.collect(lexicon, lexicon.root(), 0, cc.dup());
+			if (search != null)
+				search.expanded(words.visited);
+			List<Count> forked = null;
+			for (int i = 0; i < words.size; i++) {
+				CharCount left = words.left[i];
+				long forms = phrases ? lexicon.valueCount(words.entries[i]) : 1;
+				for (Node o : term.edges) {
+					int next = step(term, repeats, o);
+					if (next == 0)
+						continue;
+					if (o instanceof Terminal) {
+						Terminal t = (Terminal) o;
+						if (!left.empty() && reachable(lexicons, t, next, left)) {
+							if ((search == null || search.parallel) && getSurplusQueuedTaskCount() < SURPLUS) {
+								Count x = new Count(t, next, left, forms, phrases, memo, lexicons, search);
+								x.fork();
+								if (forked == null)
+									forked = new ArrayList<>();
+								forked.add(x);
+							} else {
+								BigInteger b = count(t, next, left);
+								if (b.signum() > 0)
+									total = total.add(forms == 1 ? b : b.multiply(BigInteger.valueOf(forms)));
+							}
+						}
+					} else if (left.empty()) { // must be End
+						total = total.add(BigInteger.valueOf(forms));
+					}
+				}
+			}
+			if (forked != null) {
+				for (Count x : forked)
+					total = total.add(x.join());
+			}
+			// a count cut short is wrong, but then it will not be used
+			if (search == null || search.running.get())
+				memo.put(key, total);
+			return total;
+		}
+	}
+
+	/**
+	 * Set how many suffix problems a search may remember. A suffix problem is
+	 * that of finishing an anagram from a point in the grammar at which a word
+	 * is about to begin with some characters remaining. Grammars often reach
+	 * the same such point with the same characters left by many different
+	 * prefixes, so a memoized search solves each problem once, as a graph of
+	 * all the ways to finish the anagram from there, and joins each prefix
+	 * onto this. Solutions share their parts, so forgetting one need not free
+	 * anything; instead, once the solutions a search remembers hold more
+	 * words than this, it forgets them all and begins a new generation, and
+	 * no solution is remembered that holds onto one of an earlier
+	 * generation. The words held thus bound the memory the memo takes.
+	 * 
+	 * <p>
+	 * Memoization applies only when all anagrams are wanted; a sample is
+	 * better served by a search that stops as soon as it has enough.
+	 * 
+	 * @param capacity
+	 *            the most words the solutions remembered may hold; if not
+	 *            positive, searches are not memoized
+	 */
+	public void memoize(int capacity) {
+		memoCapacity = capacity;
+	}
+
+	/**
+	 * @return whether any phrase is being processed
+	 */
+	public boolean running() {
+		return active.get() > 0;
+	}
+
+	/**
+	 * The state of a single run.
+	 */
+	private class Search {
+		final int sample;
+		private final boolean random;
+		final Limits limits;
+		/**
+		 * the most anagrams to deliver; 0 if there is no limit
+		 */
+		final long most;
+		final AtomicBoolean running = new AtomicBoolean(true);
+		/**
+		 * the nodes reported expanded so far
+		 */
+		private final AtomicLong expanded = new AtomicLong();
+		/**
+		 * stops the search when its time is up; null if it has no deadline
+		 */
+		private ScheduledFuture<?> deadline;
+		private final BlockingQueue<WorkInProgress> queue = new LinkedBlockingQueue<>();
+		/**
+		 * the lexicon of each terminal, by index, cut down to the words that
+		 * fit into the phrase; set by {@link #starts(CharCount)}
+		 */
+		Lexicon[] lexicons;
+		/**
+		 * whether the search is spread over the workers rather than run on
+		 * the calling thread
+		 */
+		boolean parallel = true;
+		/**
+		 * whether a search tried on the calling thread proved too big to
+		 * finish there; see {@link #probe(List)}
+		 */
+		private boolean overrun = false;
+		/**
+		 * the anagrams of a search tried on the calling thread, held until it
+		 * is known whether it will finish there
+		 */
+		private final List<WorkInProgress> pending = new ArrayList<>();
+		/**
+		 * the anagrams handled so far
+		 */
+		private int found = 0;
+		/**
+		 * suffix problems solved in the current generation; null if the
+		 * search is not memoized
+		 */
+		private final Map<Key, Suffix> memo;
+		/**
+		 * the most words the remembered solutions may hold
+		 */
+		private final int capacity;
+		/**
+		 * the words held by the solutions of the current generation
+		 */
+		private final AtomicLong held = new AtomicLong();
+		/**
+		 * the number of times the memo has been cleared
+		 */
+		private volatile int generation = 0;
+		/**
+		 * the arena each worker is recording words in
+		 */
+		private final ThreadLocal<Arena> arenas = new ThreadLocal<>();
+		/**
+		 * what a worker threw, if anything; rethrown by {@link #rethrow()}
+		 */
+		volatile Throwable failure;
+
+		Search(int sample, boolean random, Limits limits) {
+			this.sample = sample;
+			this.random = random;
+			this.limits = limits == null ? new Limits() : limits;
+			long results = this.limits.results();
+			if (sample > 0 && (results <= 0 || sample <= results))
+				most = sample;
+			else
+				most = Math.max(results, 0);
+			capacity = memoCapacity;
+			memo = capacity > 0 && most == 0 ? new ConcurrentHashMap<>(1024) : null;
+		}
+
+		/**
+		 * @param cc
+		 *            the characters of the phrase; null if it has characters
+		 *            not found in any word list
+		 */
+		int run(CharCount cc, OutputHandler handler) {
+			begin();
+			try {
+				List<Expansion> starts = starts(cc);
+				if (starts.isEmpty())
+					return 0;
+				if (probe(starts)) {
+					// what was found before any limit was reached is handled,
+					// but a limit reached while handling it still applies
+					boolean live = running.get();
+					int handled = 0;
+					for (WorkInProgress wip : pending) {
+						if (live && !running.get())
+							break;
+						handler.handle(wip);
+						handled++;
+					}
+					return handled;
+				}
+				ForkJoinTask<?> search = pool().submit(root(starts(cc)));
+
+				// the calling thread handles output until the search is
+				// exhausted or stopped
+				while (running.get()) {
 					WorkInProgress wip;
 					try {
-						wip = deque.take();
-					} catch (InterruptedException e1) {
+						wip = queue.take();
+					} catch (InterruptedException e) {
+						stop(Status.CANCELLED);
+						Thread.currentThread().interrupt();
 						break;
 					}
-					work(wip, deque, activityCounter);
-					int count = activityCounter.decrementAndGet();
-					if (count == 0) {
-						synchronized (activityCounter) {
-							activityCounter.notifyAll();
+					if (wip == DONE || !running.get())
+						break;
+					handler.handle(wip);
+					delivered(++found);
+				}
+				search.quietlyJoin();
+				rethrow();
+				return found;
+			} finally {
+				end();
+			}
+		}
+
+		/**
+		 * Try the search on the calling thread, holding what it finds, and
+		 * give up once it has done {@link #PROBE} units of work. The work done
+		 * so far measures the size of the search better than any estimate
+		 * made in advance. A search abandoned this way keeps its memoized
+		 * solutions and counts its expansions against the limits, but
+		 * anything it found is discarded.
+		 *
+		 * @param starts
+		 *            the tasks with which the search begins
+		 * @return whether the search finished, or was stopped, on this
+		 *         thread; if not, it is ready to be run again on the workers
+		 *         from fresh {@link #starts(CharCount)}
+		 */
+		boolean probe(List<Expansion> starts) {
+			parallel = false;
+			root(starts).invoke();
+			if (!overrun || limits.status.get() != null)
+				return true;
+			parallel = true;
+			overrun = false;
+			restart();
+			running.set(true);
+			// stop does not wait for the search to be running again
+			if (limits.status.get() != null)
+				running.set(false);
+			return false;
+		}
+
+		/**
+		 * Stop a search tried on the calling thread, as it has proved too big
+		 * to finish there.
+		 */
+		void overrun() {
+			overrun = true;
+			running.set(false);
+		}
+
+		/**
+		 * Discard what a search tried on the calling thread has found.
+		 */
+		void restart() {
+			pending.clear();
+			found = 0;
+		}
+
+		/**
+		 * Start watching for the limits to be reached.
+		 */
+		void begin() {
+			limits.attach(() -> stop(Status.CANCELLED));
+			long timeout = limits.timeout();
+			if (timeout > 0 && running.get())
+				deadline = TIMER.schedule(() -> stop(Status.DEADLINE), timeout, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * Stop watching for the limits to be reached, the search being over.
+		 */
+		void end() {
+			if (deadline != null)
+				deadline.cancel(false);
+			limits.detach();
+		}
+
+		/**
+		 * Stop the search, giving the reason unless it is stopping for another
+		 * already. This may be called from any thread; the workers notice at
+		 * the next node they would expand.
+		 * 
+		 * @param reason
+		 *            the limit reached
+		 */
+		void stop(Status reason) {
+			// the reason is set first, so that a search about to be resumed
+			// after a probe sees it
+			limits.status.compareAndSet(null, reason);
+			running.set(false);
+		}
+
+		/**
+		 * Stop the search if it has delivered as many anagrams as it may.
+		 * 
+		 * @param n
+		 *            the number delivered so far
+		 */
+		void delivered(long n) {
+			if (n == sample)
+				stop(Status.SAMPLE);
+			else if (n == limits.results())
+				stop(Status.RESULTS);
+		}
+
+		/**
+		 * Stop the search if it has expanded as many nodes as it may, or, if
+		 * it is being tried on the calling thread, as many as it may there.
+		 * 
+		 * @param n
+		 *            the number expanded since last reported
+		 */
+		void expanded(long n) {
+			long budget = limits.expansions();
+			if (budget <= 0 && parallel)
+				return;
+			long total = expanded.addAndGet(n);
+			if (budget > 0 && total >= budget)
+				stop(Status.EXPANSIONS);
+			else if (!parallel && total >= PROBE)
+				overrun();
+		}
+
+		/**
+		 * @param cc
+		 *            the characters of the phrase; null if it has characters
+		 *            not found in any word list
+		 * @return the tasks with which the search begins; empty if there can
+		 *         be no anagrams
+		 */
+		List<Expansion> starts(CharCount cc) {
+			List<Expansion> starts = new ArrayList<>();
+			if (cc != null) {
+				if (lexicons == null)
+					lexicons = lexicons(cc);
+				for (Node n : edges(dfa.in)) {
+					if (n instanceof Terminal) {
+						Terminal term = (Terminal) n;
+						if (reachable(lexicons, term, 1, cc))
+							starts.add(new Expansion(lexicons[term.index].root(), 0, term, 1, cc.dup(), null));
+					}
+				}
+			}
+			return starts;
+		}
+
+		/**
+		 * @return the task performing the whole search, which calls
+		 *         {@link #finish(Throwable)} once it is over
+		 */
+		RecursiveAction root(List<Expansion> starts) {
+			return new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					Throwable failure = null;
+					try {
+						if (random && sample > 0)
+							sample(starts);
+						else
+							all(starts);
+					} catch (RuntimeException | Error e) {
+						failure = e;
+						Search.this.failure = e;
+						stop(Status.FAILED);
+						throw e;
+					} finally {
+						finish(failure);
+					}
+				}
+			};
+		}
+
+		/**
+		 * Perform tasks, in parallel if the search is.
+		 */
+		void all(List<? extends ForkJoinTask<?>> tasks) {
+			if (parallel) {
+				ForkJoinTask.invokeAll(tasks);
+			} else {
+				for (ForkJoinTask<?> t : tasks)
+					t.invoke();
+			}
+		}
+
+		/**
+		 * @return whether to hand a subproblem to another worker
+		 */
+		boolean forking() {
+			return parallel && ForkJoinTask.getSurplusQueuedTaskCount() < SURPLUS;
+		}
+
+		/**
+		 * Deliver an anagram. This is called on the workers, or on the calling
+		 * thread if the search is being tried there.
+		 */
+		void emit(WorkInProgress wip) {
+			if (parallel) {
+				queue.offer(wip);
+			} else if (running.get()) {
+				if (pending.size() == PROBE) {
+					overrun();
+					return;
+				}
+				pending.add(wip);
+				delivered(++found);
+			}
+		}
+
+		/**
+		 * Rethrow on the calling thread whatever a worker threw.
+		 */
+		void rethrow() {
+			if (failure instanceof RuntimeException)
+				throw (RuntimeException) failure;
+			if (failure instanceof Error)
+				throw (Error) failure;
+		}
+
+		/**
+		 * Called once the search is over.
+		 * 
+		 * @param failure
+		 *            what stopped the search, if it did not simply run its
+		 *            course or get stopped
+		 */
+		void finish(Throwable failure) {
+			if (parallel)
+				queue.offer(DONE);
+		}
+
+		/**
+		 * A stack of the words a task has added to the prefix it was given.
+		 * They are recorded in the worker's {@link Arena} only when some
+		 * {@link WorkInProgress} needs them, and then only once for as long as
+		 * they stay on the stack.
+		 */
+		class Trail {
+			private final WorkInProgress prefix;
+			private int[] terms = new int[8];
+			private int[] entries = new int[8];
+			/**
+			 * where each word is recorded in {@link #arena}
+			 */
+			private int[] records = new int[8];
+			private int depth = 0;
+			/**
+			 * the number of words at the bottom of the stack recorded in
+			 * {@link #arena}
+			 */
+			private int recorded = 0;
+			private Arena arena;
+			/**
+			 * where the last word of the prefix is recorded in {@link #arena}
+			 */
+			private int base;
+
+			Trail(WorkInProgress prefix) {
+				this.prefix = prefix;
+			}
+
+			void push(Terminal n, int entry) {
+				if (depth == terms.length) {
+					terms = Arrays.copyOf(terms, depth * 2);
+					entries = Arrays.copyOf(entries, depth * 2);
+					records = Arrays.copyOf(records, depth * 2);
+				}
+				terms[depth] = n.index;
+				entries[depth] = entry;
+				if (recorded > depth)
+					recorded = depth;
+				depth++;
+			}
+
+			void pop() {
+				depth--;
+			}
+
+			/**
+			 * @return the prefix and the words on the stack
+			 */
+			WorkInProgress words() {
+				if (depth == 0)
+					return prefix;
+				Arena a = arenas.get();
+				if (a == null || a != arena || !a.fits(depth - recorded)) {
+					// start over in this worker's arena, or in a new one if it
+					// is full
+					int need = depth + (prefix == null ? 0 : prefix.length());
+					if (a == null || !a.fits(need)) {
+						a = new Arena(lexicons, Math.max(Arena.BLOCK, need));
+						arenas.set(a);
+					}
+					arena = a;
+					recorded = 0;
+					if (prefix == null)
+						base = -1;
+					else if (prefix.arena == a)
+						base = prefix.at;
+					else
+						base = a.copy(prefix.arena, prefix.at);
+				}
+				for (int i = recorded; i < depth; i++)
+					records[i] = a.add(i == 0 ? base : records[i - 1], terms[i], entries[i]);
+				recorded = depth;
+				return new WorkInProgress(a, records[depth - 1]);
+			}
+		}
+
+		/**
+		 * Depth-first exploration of the anagrams reachable from a particular
+		 * point in the search. The task owns a mutable {@link CharCount} and a stack
+		 * of the words completed so far, which it updates and restores as it
+		 * backtracks, so it allocates nothing until it either finds an anagram or
+		 * hands a subtree off to an idle worker.
+		 */
+		class Expansion extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+			private final int trie, offset;
+			private final Terminal node;
+			/**
+			 * the words taken at the node in a row, counting the current one
+			 */
+			private final int repeats;
+			private final CharCount cc;
+			/**
+			 * words completed so far
+			 */
+			private final Trail trail;
+			private List<Expansion> forked;
+			/**
+			 * the nodes expanded and not yet reported
+			 */
+			private int expansions = 0;
+
+			Expansion(int trie, int offset, Terminal node, int repeats, CharCount cc, WorkInProgress prefix) {
+				this.trie = trie;
+				this.offset = offset;
+				this.node = node;
+				this.repeats = repeats;
+				this.cc = cc;
+				this.trail = new Trail(prefix);
+			}
+
+			@Override
+			protected void compute() {
+				search(trie, offset, node, repeats);
+				expanded(expansions);
+				if (forked != null) {
+					for (Expansion x : forked)
+						x.join();
+				}
+			}
+
+			/**
+			 * Continue with a successor, either in this task or, if other workers
+			 * are starving, in a newly forked one.
+			 */
+			private void next(int t, int offset, Terminal n, int repeats) {
+				if (forking()) {
+					Expansion x = new Expansion(t, offset, n, repeats, cc.dup(), trail.words());
+					if (forked == null)
+						forked = new ArrayList<>();
+					forked.add(x);
+					x.fork();
+				} else {
+					search(t, offset, n, repeats);
+				}
+			}
+
+			/**
+			 * Solve the suffix problem following the first word, which is on
+			 * the stack, and deliver its anagrams at once, so that a memoized
+			 * search streams them as each first word is finished.
+			 */
+			private void suffix(Terminal n, int repeats) {
+				Suffix s = solve(n, repeats, cc.dup());
+				if (s != Suffix.NONE)
+					new Emit(s, trail.words()).invoke();
+			}
+
+			/**
+			 * @param t
+			 *            lexicon node
+			 * @param offset
+			 *            sum of the offsets of the edges leading to it
+			 * @param n
+			 *            the node whose lexicon is being traversed
+			 * @param repeats
+			 *            the words taken at the node in a row, counting the
+			 *            current one
+			 */
+			private void search(int t, int offset, Terminal n, int repeats) {
+				if (!running.get())
+					return;
+				if (++expansions == BATCH) {
+					expansions = 0;
+					expanded(BATCH);
+				}
+				Lexicon lexicon = lexicons[n.index];
+				boolean active = !cc.empty();
+				if (active) {
+					int count = lexicon.children(t);
+					int[] order = order(count);
+					for (int j = 0; j < count; j++) {
+						int k = order == null ? j : order[j];
+						int c = lexicon.edge(t, k);
+						if (cc.take(c)) {
+							int t2 = lexicon.child(t, k);
+							if (lexicon.feasible(t2, cc))
+								next(t2, offset + lexicon.offset(t, k), n, repeats);
+							cc.restore(c);
+						}
+					}
+				}
+				if (lexicon.terminal(t)) {
+					for (Node o : edges(n)) {
+						int next = step(n, repeats, o);
+						if (next == 0)
+							continue;
+						if (o instanceof Terminal) {
+							if (active) {
+								Terminal term = (Terminal) o;
+								if (reachable(lexicons, term, next, cc)) {
+									trail.push(n, offset + lexicon.entry(t));
+									if (memo == null)
+										next(lexicons[term.index].root(), 0, term, next);
+									else
+										suffix(term, next);
+									trail.pop();
+								}
+							}
+						} else if (!active) { // must be End
+							trail.push(n, offset + lexicon.entry(t));
+							emit(trail.words());
+							trail.pop();
 						}
 					}
 				}
-			});
-			t2.setDaemon(true);
-			threadsToKill.add(t2);
+			}
 		}
 
-		final Thread t = new Thread(() -> {
-			while (true) {
-				WorkInProgress wip;
-				try {
-					wip = queue.take();
-				} catch (InterruptedException e1) {
-					break;
+		/**
+		 * @param term
+		 *            a node at which a word is about to begin
+		 * @param repeats
+		 *            the words taken there in a row, counting this one
+		 * @param cc
+		 *            the characters remaining, which must not change
+		 * @return all the ways of finishing the anagram
+		 */
+		private Suffix solve(Terminal term, int repeats, CharCount cc) {
+			Key key = new Key(term, repeats, cc);
+			Suffix s = memo.get(key);
+			if (s != null)
+				return s;
+			if (!running.get())
+				return Suffix.NONE;
+			Lexicon lexicon = lexicons[term.index];
+			Words words = new Words();
+			words.collect(lexicon, lexicon.root(), 0, cc.dup());
+			expanded(words.visited);
+			int[] entries = new int[words.size];
+			Suffix[] rest = new Suffix[words.size];
+			int n = 0;
+			List<Solve> subproblems = null;
+			for (int i = 0; i < words.size; i++) {
+				CharCount left = words.left[i];
+				for (Node o : term.edges) {
+					int next = step(term, repeats, o);
+					if (next == 0)
+						continue;
+					if (o instanceof Terminal) {
+						Terminal t = (Terminal) o;
+						if (!left.empty() && reachable(lexicons, t, next, left)) {
+							if (n == entries.length) {
+								entries = Arrays.copyOf(entries, n * 2);
+								rest = Arrays.copyOf(rest, n * 2);
+							}
+							entries[n] = words.entries[i];
+							if (forking()) {
+								Solve x = new Solve(t, next, left);
+								x.fork();
+								if (subproblems == null)
+									subproblems = new ArrayList<>();
+								subproblems.add(x);
+								x.index = n++;
+							} else {
+								rest[n++] = solve(t, next, left);
+							}
+						}
+					} else if (left.empty()) { // must be End
+						if (n == entries.length) {
+							entries = Arrays.copyOf(entries, n * 2);
+							rest = Arrays.copyOf(rest, n * 2);
+						}
+						entries[n] = words.entries[i];
+						rest[n++] = Suffix.END;
+					}
 				}
-				found.incrementAndGet();
-				handler.handle(wip);
-				if (sampling && found.get() == sample) {
-					running.set(false);
-					synchronized (activityCounter) {
-						activityCounter.notifyAll();
+			}
+			if (subproblems != null) {
+				for (Solve x : subproblems)
+					rest[x.index] = x.join();
+			}
+			// drop the words that lead nowhere
+			int m = 0;
+			for (int i = 0; i < n; i++) {
+				if (rest[i] != Suffix.NONE) {
+					entries[m] = entries[i];
+					rest[m++] = rest[i];
+				}
+			}
+			if (m == 0) {
+				s = Suffix.NONE;
+			} else {
+				int g = generation;
+				for (int i = 0; i < m; i++)
+					g = Math.min(g, rest[i].generation);
+				s = new Suffix(term, Arrays.copyOf(entries, m), Arrays.copyOf(rest, m), g);
+			}
+			remember(key, s);
+			return s;
+		}
+
+		/**
+		 * Remember a solution unless it may have been cut short by the search
+		 * stopping or holds onto the solutions of an earlier generation; begin
+		 * a new generation if the memo is full.
+		 */
+		private void remember(Key key, Suffix s) {
+			if (!running.get() || s.generation < generation)
+				return;
+			if (held.addAndGet(s.entries.length + 1) > capacity) {
+				synchronized (memo) {
+					if (held.get() > capacity) {
+						memo.clear();
+						held.set(0);
+						generation++;
 					}
-					break;
 				}
-				int count = activityCounter.decrementAndGet();
-				if (count == 0) {
-					synchronized (activityCounter) {
-						activityCounter.notifyAll();
+				return;
+			}
+			memo.put(key, s);
+		}
+
+		/**
+		 * Solves a suffix problem, perhaps on another worker.
+		 */
+		private class Solve extends RecursiveTask<Suffix> {
+			private static final long serialVersionUID = 1L;
+			private final Terminal term;
+			private final int repeats;
+			private final CharCount cc;
+			/**
+			 * where the result belongs among the alternatives of the problem
+			 * that forked this
+			 */
+			int index;
+
+			Solve(Terminal term, int repeats, CharCount cc) {
+				this.term = term;
+				this.repeats = repeats;
+				this.cc = cc;
+			}
+
+			@Override
+			protected Suffix compute() {
+				return solve(term, repeats, cc);
+			}
+		}
+
+		/**
+		 * Joins a prefix onto every path through a solved suffix and delivers
+		 * the anagrams so made.
+		 */
+		private class Emit extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+			private final Suffix suffix;
+			private final Trail trail;
+			private List<Emit> forked;
+
+			Emit(Suffix suffix, WorkInProgress prefix) {
+				this.suffix = suffix;
+				this.trail = new Trail(prefix);
+			}
+
+			@Override
+			protected void compute() {
+				emit(suffix);
+				if (forked != null) {
+					for (Emit x : forked)
+						x.join();
+				}
+			}
+
+			private void emit(Suffix s) {
+				if (!running.get())
+					return;
+				int count = s.entries.length;
+				int[] order = order(count);
+				for (int j = 0; j < count; j++) {
+					int k = order == null ? j : order[j];
+					trail.push(s.terminal, s.entries[k]);
+					Suffix r = s.rest[k];
+					if (r == Suffix.END) {
+						Search.this.emit(trail.words());
+					} else if (forking()) {
+						Emit x = new Emit(r, trail.words());
+						if (forked == null)
+							forked = new ArrayList<>();
+						forked.add(x);
+						x.fork();
+					} else {
+						emit(r);
 					}
+					trail.pop();
 				}
 			}
-		});
-		t.setDaemon(true);
-		threadsToKill.add(t);
+		}
 
-		for (Thread th : threadsToKill)
-			th.start();
+		private Node[] edges(Node n) {
+			Node[] edges = n.edges;
+			if (random) {
+				edges = Arrays.copyOf(edges, edges.length);
+				ThreadLocalRandom r = ThreadLocalRandom.current();
+				for (int i = edges.length - 1; i > 0; i--) {
+					int j = r.nextInt(i + 1);
+					Node temp = edges[i];
+					edges[i] = edges[j];
+					edges[j] = temp;
+				}
+			}
+			return edges;
+		}
 
-		// keep the main thread alive until all the work is done
-		synchronized (activityCounter) {
-			while (running.get() && activityCounter.get() > 0) {
-				try {
-					activityCounter.wait(1000);
-				} catch (InterruptedException e1) {
-					break;
+		/**
+		 * @param count
+		 *            number of edges
+		 * @return a random order in which to visit the edges, or null if they are
+		 *         to be visited in order
+		 */
+		private int[] order(int count) {
+			if (random) {
+				int[] order = new int[count];
+				ThreadLocalRandom r = ThreadLocalRandom.current();
+				for (int i = 0; i < count; i++) {
+					// inside-out Fisher-Yates
+					int j = r.nextInt(i + 1);
+					order[i] = order[j];
+					order[j] = i;
 				}
+				return order;
+			} else {
+				return null;
 			}
 		}
-		for (Thread th : threadsToKill) {
-			th.interrupt();
+
+		/**
+		 * Deliver a sample of the anagrams drawn uniformly at random, without
+		 * replacement, from all of them, without enumerating the rest. The
+		 * anagrams following from each point of the search are first counted
+		 * exactly, as by {@link Engine#count(String)} but once apiece rather
+		 * than once per phrase. Numbering the anagrams in the order a search
+		 * would find them, the sample is then a random set of their numbers,
+		 * and each is found by descending from the start, at each point taking
+		 * the word and edge whose anagrams include the number sought.
+		 */
+		private void sample(List<Expansion> starts) {
+			Map<Key, BigInteger> counts = new ConcurrentHashMap<>();
+			List<Count> tasks = new ArrayList<>(starts.size());
+			for (Expansion x : starts)
+				tasks.add(new Count(x.node, x.repeats, x.cc, 1, false, counts, lexicons, this));
+			all(tasks);
+			if (!running.get())
+				return;
+			BigInteger total = BigInteger.ZERO;
+			for (Count x : tasks)
+				total = total.add(x.getRawResult());
+			Map<Key, Choices> choices = new ConcurrentHashMap<>();
+			List<RecursiveAction> draws = new ArrayList<>(sample);
+			for (BigInteger r : draw(total, (int) most)) {
+				draws.add(new RecursiveAction() {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected void compute() {
+						if (!running.get())
+							return;
+						BigInteger rank = r;
+						int i = 0;
+						while (rank.compareTo(tasks.get(i).getRawResult()) >= 0)
+							rank = rank.subtract(tasks.get(i++).getRawResult());
+						Expansion x = starts.get(i);
+						unrank(x.node, x.repeats, x.cc, rank, counts, choices);
+					}
+				});
+			}
+			all(draws);
 		}
 
-		running.set(false);
+		/**
+		 * Find and deliver an anagram by its number.
+		 * 
+		 * @param term
+		 *            a node at which a word is about to begin
+		 * @param repeats
+		 *            the words taken there in a row, counting this one
+		 * @param cc
+		 *            the characters remaining, which must not change
+		 * @param rank
+		 *            the number of the anagram among those finished from here
+		 * @param counts
+		 *            the number of anagrams finished from each point
+		 * @param choices
+		 *            the ways to go on from each point visited so far
+		 */
+		private void unrank(Terminal term, int repeats, CharCount cc, BigInteger rank, Map<Key, BigInteger> counts,
+				Map<Key, Choices> choices) {
+			Trail trail = new Trail(null);
+			while (true) {
+				Key key = new Key(term, repeats, cc);
+				Choices c = choices.get(key);
+				if (c == null) {
+					c = new Choices(term, repeats, cc, counts, this);
+					if (!running.get())
+						return;
+					choices.put(key, c);
+				}
+				int i = c.find(rank);
+				trail.push(term, c.entries[i]);
+				if (c.next[i] == null) {
+					emit(trail.words());
+					return;
+				}
+				rank = rank.subtract(c.before[i]);
+				term = c.next[i];
+				repeats = c.repeats[i];
+				cc = c.left[i];
+			}
+		}
 	}
 
-	public boolean running() {
-		return running.get();
-	}
+	/**
+	 * A search whose anagrams go straight from the workers to a subscriber as
+	 * it asks for them. A worker with an anagram to deliver when none has
+	 * been requested waits until one is, so exploration pauses while the
+	 * subscriber catches up. Deliveries are serialized.
+	 */
+	private class Publication extends Search implements Flow.Subscription {
+		private final Flow.Subscriber<? super WorkInProgress> subscriber;
+		private final CharCount cc;
+		/**
+		 * anagrams requested but not yet delivered
+		 */
+		private volatile long demand = 0;
+		private int sent = 0;
+		private boolean cancelled = false;
+		/**
+		 * whether the subscriber has been told the search is over
+		 */
+		private boolean terminated = false;
 
-	private void work(WorkInProgress wip, BlockingDeque<WorkInProgress> queue, AtomicInteger activityCounter) {
-		Node n = wip.n;
-		// only encounterable if the start sometimes has an edge directly to the
-		// end
-		if (n instanceof End) {
-			if (wip.cc.empty()) {
-				activityCounter.incrementAndGet();
-				((End) n).getOutput().offer(wip);
+		Publication(Flow.Subscriber<? super WorkInProgress> subscriber, CharCount cc, int sample, boolean random,
+				Limits limits) {
+			super(sample, random, limits);
+			this.subscriber = subscriber;
+			this.cc = cc;
+		}
+
+		void start() {
+			active.incrementAndGet();
+			begin();
+			subscriber.onSubscribe(this);
+			List<Expansion> starts = starts(cc);
+			if (starts.isEmpty()) {
+				finish(null);
+			} else {
+				pool().execute(root(starts));
 			}
-		} else {
-			CharCount cc = wip.cc;
-			Trie t = wip.t;
-			boolean active = !cc.empty();
-			if (active) {
-				for (int i : jumplist(t)) {
-					CharCount cc2 = cc.decrement(i);
-					if (cc2 != null) {
-						Trie t2 = t.children[i];
-						activityCounter.incrementAndGet();
-						enqueue(wip, queue, n, cc2, t2, false);
+		}
+
+		@Override
+		void emit(WorkInProgress wip) {
+			while (true) {
+				synchronized (this) {
+					if (!running.get())
+						return;
+					if (demand > 0) {
+						demand--;
+						subscriber.onNext(wip);
+						delivered(++sent);
+						return;
 					}
 				}
+				// the pool is shared, so a worker waiting on a slow subscriber
+				// lets it add another in its place
+				try {
+					ForkJoinPool.managedBlock(waiting);
+				} catch (InterruptedException e) {
+					stop(Status.CANCELLED);
+				}
 			}
-			if (t.terminal) {
-				for (Node o : edges(n)) {
-					if (o instanceof Terminal) {
-						if (active) {
-							Terminal term2 = (Terminal) o;
-							activityCounter.incrementAndGet();
-							enqueue(wip, queue, o, cc, term2.trie, true);
+		}
+
+		/**
+		 * waits for the subscriber to request more
+		 */
+		private final ForkJoinPool.ManagedBlocker waiting = new ForkJoinPool.ManagedBlocker() {
+			@Override
+			public boolean block() throws InterruptedException {
+				synchronized (Publication.this) {
+					if (!isReleasable())
+						Publication.this.wait();
+				}
+				return isReleasable();
+			}
+
+			@Override
+			public boolean isReleasable() {
+				return demand > 0 || !running.get();
+			}
+		};
+
+		@Override
+		void stop(Status reason) {
+			super.stop(reason);
+			// wake any worker waiting for demand
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+
+		@Override
+		void finish(Throwable failure) {
+			end();
+			synchronized (this) {
+				if (!cancelled && !terminated) {
+					terminated = true;
+					if (failure == null)
+						subscriber.onComplete();
+					else
+						subscriber.onError(failure);
+				}
+			}
+			active.decrementAndGet();
+		}
+
+		@Override
+		public synchronized void request(long n) {
+			if (n <= 0) {
+				stop(Status.CANCELLED);
+				if (!cancelled && !terminated) {
+					terminated = true;
+					subscriber.onError(new IllegalArgumentException("non-positive request: " + n));
+				}
+			} else {
+				demand += n;
+				if (demand < 0) // overflow; demand is effectively unbounded
+					demand = Long.MAX_VALUE;
+			}
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void cancel() {
+			cancelled = true;
+			stop(Status.CANCELLED);
+		}
+	}
+
+	/**
+	 * A search that renders anagrams on the workers that find them, each into
+	 * a buffer of its own. Full buffers are handed to the calling thread to
+	 * write out and then recycled, so writing is the only work left to a
+	 * single thread.
+	 */
+	private class Rendering extends Search {
+		private final Renderer renderer;
+		private final ThreadLocal<OutputBuffer> local = new ThreadLocal<>();
+		/**
+		 * every buffer made, so that those left partly full at the end may be
+		 * written
+		 */
+		private final Queue<OutputBuffer> buffers = new ConcurrentLinkedQueue<>();
+		/**
+		 * buffers waiting to be written; bounded, so the workers wait if the
+		 * writing falls behind
+		 */
+		private final BlockingQueue<OutputBuffer> full = new ArrayBlockingQueue<>(threads * 2);
+		private final Queue<OutputBuffer> free = new ConcurrentLinkedQueue<>();
+		private final AtomicLong emitted = new AtomicLong();
+		private final LongAdder written = new LongAdder();
+		private IOException ioe;
+
+		Rendering(int sample, boolean random, Limits limits, Renderer renderer) {
+			super(sample, random, limits);
+			this.renderer = renderer;
+		}
+
+		long run(CharCount cc, OutputStream out) throws IOException {
+			begin();
+			try {
+				List<Expansion> starts = starts(cc);
+				if (starts.isEmpty())
+					return 0;
+				if (probe(starts))
+					return flush(out);
+				ForkJoinTask<?> search = pool().submit(root(starts(cc)));
+				boolean interrupted = false;
+				while (true) {
+					OutputBuffer b;
+					try {
+						b = full.take();
+					} catch (InterruptedException e) {
+						// stop, but keep draining so that no worker is left waiting
+						interrupted = true;
+						stop(Status.CANCELLED);
+						continue;
+					}
+					if (b == FINISHED)
+						break;
+					if (ioe == null) {
+						try {
+							b.writeTo(out);
+						} catch (IOException e) {
+							ioe = e;
+							stop(Status.CANCELLED);
 						}
-					} else if (!active) { // must be End
-						End e = (End) o;
-						activityCounter.incrementAndGet();
-						e.getOutput().offer(wip);
 					}
+					b.truncate(0);
+					free.offer(b);
+				}
+				search.quietlyJoin();
+				if (interrupted)
+					Thread.currentThread().interrupt();
+				return flush(out);
+			} finally {
+				end();
+			}
+		}
+
+		/**
+		 * Write the buffers left partly full once the search is over.
+		 *
+		 * @return the anagrams written
+		 */
+		private long flush(OutputStream out) throws IOException {
+			if (ioe != null)
+				throw ioe;
+			rethrow();
+			for (OutputBuffer b : buffers) {
+				if (b.size() > 0)
+					b.writeTo(out);
+			}
+			return written.sum();
+		}
+
+		@Override
+		void emit(WorkInProgress wip) {
+			if (most > 0) {
+				long n = emitted.incrementAndGet();
+				if (n > most)
+					return;
+				delivered(n);
+			}
+			OutputBuffer b = local.get();
+			if (b == null) {
+				b = free.poll();
+				if (b == null) {
+					b = new OutputBuffer(BUFFER_SIZE);
+					buffers.add(b);
+				}
+				local.set(b);
+			}
+			written.add(renderer.render(wip, b));
+			if (b.size() >= BUFFER_SIZE) {
+				if (!parallel) {
+					// too much to hold
+					overrun();
+					return;
+				}
+				local.set(null);
+				try {
+					// the pool is shared, so a worker waiting on the writer
+					// lets it add another in its place
+					ForkJoinPool.managedBlock(new Put(b));
+				} catch (InterruptedException e) {
+					// the buffer will be written with the partly full ones
+					stop(Status.CANCELLED);
+				}
+			}
+		}
+
+		@Override
+		void restart() {
+			super.restart();
+			emitted.set(0);
+			written.reset();
+			for (OutputBuffer b : buffers)
+				b.truncate(0);
+		}
+
+		/**
+		 * hands a full buffer to the writer
+		 */
+		private class Put implements ForkJoinPool.ManagedBlocker {
+			private final OutputBuffer b;
+			private boolean done = false;
+
+			Put(OutputBuffer b) {
+				this.b = b;
+			}
+
+			@Override
+			public boolean block() throws InterruptedException {
+				if (!done) {
+					full.put(b);
+					done = true;
 				}
+				return true;
+			}
+
+			@Override
+			public boolean isReleasable() {
+				return done || (done = full.offer(b));
 			}
 		}
+
+		@Override
+		void finish(Throwable failure) {
+			if (!parallel)
+				return;
+			boolean interrupted = false;
+			while (true) {
+				try {
+					full.put(FINISHED);
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
 	}
 
-	private Node[] edges(Node n) {
-		Node[] edges = n.edges;
-		if (random) {
-			edges = Arrays.copyOf(edges, edges.length);
-			Arrays.parallelSort(edges, RANDOM_COMPARATOR);
+	/**
+	 * The ways to go on from some point in the search -- a word and the edge
+	 * followed after it -- that lead to an anagram, in the order a search
+	 * would take them, each with the number of anagrams that follow the ways
+	 * before it.
+	 */
+	private static class Choices {
+		int[] entries = new int[8];
+		/**
+		 * the node at which the next word begins; null if the anagram ends
+		 */
+		Terminal[] next = new Terminal[8];
+		int[] repeats = new int[8];
+		CharCount[] left = new CharCount[8];
+		BigInteger[] before = new BigInteger[8];
+		int size = 0;
+
+		/**
+		 * @param term
+		 *            a node at which a word is about to begin
+		 * @param repeats
+		 *            the words taken there in a row, counting this one
+		 * @param cc
+		 *            the characters remaining, which must not change
+		 * @param counts
+		 *            the number of anagrams finished from each point
+		 * @param search
+		 *            the search the anagrams are for
+		 */
+		Choices(Terminal term, int repeats, CharCount cc, Map<Key, BigInteger> counts, Search search) {
+			Lexicon[] lexicons = search.lexicons;
+			Lexicon lexicon = lexicons[term.index];
+			Words words = new Words();
+			words.collect(lexicon, lexicon.root(), 0, cc.dup());
+			BigInteger total = BigInteger.ZERO;
+			for (int i = 0; i < words.size; i++) {
+				CharCount left = words.left[i];
+				for (Node o : term.edges) {
+					int next = step(term, repeats, o);
+					if (next == 0)
+						continue;
+					if (o instanceof Terminal) {
+						Terminal t = (Terminal) o;
+						if (!left.empty() && reachable(lexicons, t, next, left)) {
+							BigInteger n = counts.get(new Key(t, next, left));
+							if (n == null)
+								n = new Count(t, next, left, 1, false, counts, search.lexicons, search).invoke();
+							if (n.signum() > 0) {
+								add(words.entries[i], t, next, left, total);
+								total = total.add(n);
+							}
+						}
+					} else if (left.empty()) { // must be End
+						add(words.entries[i], null, 0, left, total);
+						total = total.add(BigInteger.ONE);
+					}
+				}
+			}
+		}
+
+		private void add(int entry, Terminal t, int r, CharCount cc, BigInteger b) {
+			if (size == entries.length) {
+				entries = Arrays.copyOf(entries, size * 2);
+				next = Arrays.copyOf(next, size * 2);
+				repeats = Arrays.copyOf(repeats, size * 2);
+				left = Arrays.copyOf(left, size * 2);
+				before = Arrays.copyOf(before, size * 2);
+			}
+			entries[size] = entry;
+			next[size] = t;
+			repeats[size] = r;
+			left[size] = cc;
+			before[size++] = b;
+		}
+
+		/**
+		 * @param rank
+		 *            the number of an anagram finished from here
+		 * @return the index of the way to go on that leads to it
+		 */
+		int find(BigInteger rank) {
+			int lo = 0, hi = size - 1;
+			while (lo < hi) {
+				int mid = lo + hi + 1 >>> 1;
+				if (before[mid].compareTo(rank) <= 0)
+					lo = mid;
+				else
+					hi = mid - 1;
+			}
+			return lo;
 		}
-		return edges;
 	}
 
-	private int[] jumplist(Trie t) {
-		if (random) {
-			int[] jumplist = Arrays.copyOf(t.jumpList, t.jumpList.length);
-			for (int i = 0; i < jumplist.length; i++) {
-				int j = (int) (Math.random() * jumplist.length);
-				int temp = jumplist[i];
-				jumplist[i] = jumplist[j];
-				jumplist[j] = temp;
+	/**
+	 * The words of a lexicon that can be made from some characters, and the
+	 * characters each leaves.
+	 */
+	private static class Words {
+		int[] entries = new int[8];
+		CharCount[] left = new CharCount[8];
+		int size = 0;
+		/**
+		 * the lexicon nodes expanded
+		 */
+		int visited = 0;
+
+		/**
+		 * @param lexicon
+		 * @param t
+		 *            lexicon node
+		 * @param offset
+		 *            sum of the offsets of the edges leading to it
+		 * @param cc
+		 *            the characters remaining, taken and restored in place
+		 */
+		void collect(Lexicon lexicon, int t, int offset, CharCount cc) {
+			visited++;
+			if (lexicon.terminal(t)) {
+				if (size == entries.length) {
+					entries = Arrays.copyOf(entries, size * 2);
+					left = Arrays.copyOf(left, size * 2);
+				}
+				entries[size] = offset + lexicon.entry(t);
+				left[size++] = cc.dup();
+			}
+			if (cc.empty())
+				return;
+			for (int k = 0, count = lexicon.children(t); k < count; k++) {
+				int c = lexicon.edge(t, k);
+				if (cc.take(c)) {
+					int t2 = lexicon.child(t, k);
+					if (lexicon.feasible(t2, cc))
+						collect(lexicon, t2, offset + lexicon.offset(t, k), cc);
+					cc.restore(c);
+				}
 			}
-			return jumplist;
+		}
+	}
+
+	/**
+	 * Identifies a suffix problem: a node at which a word is about to begin
+	 * and the characters remaining.
+	 */
+	private static class Key {
+		private final Terminal term;
+		private final int repeats;
+		private final CharCount cc;
+		private final int hash;
+
+		Key(Terminal term, int repeats, CharCount cc) {
+			this.term = term;
+			this.repeats = repeats;
+			this.cc = cc;
+			this.hash = 31 * (31 * term.hashCode() + repeats) + cc.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key) o;
+			return term == other.term && repeats == other.repeats && cc.equals(other.cc);
+		}
+	}
+
+	/**
+	 * @param total
+	 * @param n
+	 * @return n distinct numbers drawn uniformly at random from those less
+	 *         than the total, in random order; all of them if there are no
+	 *         more than n
+	 */
+	private static List<BigInteger> draw(BigInteger total, int n) {
+		ThreadLocalRandom r = ThreadLocalRandom.current();
+		List<BigInteger> drawn = new ArrayList<>();
+		if (total.compareTo(BigInteger.valueOf(n)) <= 0) {
+			for (int i = 0, m = total.intValue(); i < m; i++)
+				drawn.add(BigInteger.valueOf(i));
 		} else {
-			return t.jumpList;
+			// Floyd's algorithm
+			Set<BigInteger> seen = new HashSet<>();
+			for (BigInteger j = total.subtract(BigInteger.valueOf(n)); j.compareTo(total) < 0; j = j
+					.add(BigInteger.ONE)) {
+				BigInteger bound = j.add(BigInteger.ONE), t;
+				do
+					t = new BigInteger(bound.bitLength(), r);
+				while (t.compareTo(bound) >= 0);
+				if (!seen.add(t))
+					seen.add(t = j);
+				drawn.add(t);
+			}
+		}
+		Collections.shuffle(drawn, r);
+		return drawn;
+	}
+
+	/**
+	 * @param lexicons
+	 *            the lexicon of each terminal, by index
+	 * @param term
+	 *            a node at which a word is about to begin
+	 * @param repeats
+	 *            the words taken there in a row, counting this one
+	 * @param cc
+	 *            the characters remaining
+	 * @return whether these characters might be used up on some path from
+	 *         this node to the end
+	 */
+	private static boolean reachable(Lexicon[] lexicons, Terminal term, int repeats, CharCount cc) {
+		int min = term.minToEnd, max = term.maxToEnd;
+		if (repeats > 1) {
+			Loop l = (Loop) term;
+			min = l.minToEnd(repeats);
+			max = l.maxToEnd(repeats);
 		}
+		return cc.n >= min && cc.n <= max && (cc.mask() & ~term.reach) == 0
+				&& lexicons[term.index].feasible(lexicons[term.index].root(), cc);
 	}
 
-	private void enqueue(WorkInProgress wip, BlockingDeque<WorkInProgress> queue, Node n, CharCount cc, Trie t,
-			boolean overEdge) {
-		WorkInProgress wip2 = new WorkInProgress(t, n, cc, wip, overEdge);
-		queue.offerFirst(wip2);
+	/**
+	 * @param term
+	 *            the node at which a word has just been completed
+	 * @param repeats
+	 *            the words taken there in a row, counting that one
+	 * @param o
+	 *            a node an edge leads to
+	 * @return the words that will have been taken in a row at the other node
+	 *         once the next word there begins, or 0 if the edge may not be
+	 *         followed
+	 */
+	private static int step(Terminal term, int repeats, Node o) {
+		if (term instanceof Loop) {
+			Loop l = (Loop) term;
+			if (o == term)
+				return l.next(repeats);
+			if (!l.canLeave(repeats))
+				return 0;
+		}
+		return 1;
 	}
 
 	/**
@@ -240,16 +2071,10 @@ public class Engine {
 		return found.get();
 	}
 
-	private Map<String, Trie> makeTries(Map<String, List<String>> wordLists) {
-		Map<String, Trie> catalog = new HashMap<>();
+	private Map<String, Lexicon> makeTries(Map<String, List<String>> wordLists) {
+		Map<String, Lexicon> catalog = new HashMap<>();
 		for (Entry<String, List<String>> e : wordLists.entrySet()) {
-			Trie t = new Trie();
-			catalog.put(e.getKey(), t);
-			for (String word : e.getValue()) {
-				int[] translation = charmap.translate(word);
-				t.add(word, translation, 0);
-			}
-			t.done();
+			catalog.put(e.getKey(), new Dawg(e.getValue(), charmap));
 		}
 		return catalog;
 	}
@@ -0,0 +1,109 @@
+package dfh.anagrammar;
+
+/**
+ * What the search needs from a word list: a graph of character transitions
+ * whose nodes are identified by integers, some of which complete a word. A
+ * completed word is identified by an entry number, which indexes the
+ * surface forms -- there may be several -- that normalize to it. Where nodes
+ * are shared among words, as in a {@link Dawg}, the entry number depends on
+ * the path taken, so it is the sum of the {@link #offset(int, int)} of each
+ * edge followed plus the {@link #entry(int)} of the final node.
+ *
+ * @author houghton
+ *
+ */
+public interface Lexicon {
+	/**
+	 * @return the node from which all words begin
+	 */
+	int root();
+
+	/**
+	 * @return the number of nodes
+	 */
+	int size();
+
+	/**
+	 * @param node
+	 * @return the number of edges leaving this node
+	 */
+	int children(int node);
+
+	/**
+	 * @param node
+	 * @param k
+	 *            index of an edge, less than {@link #children(int)}
+	 * @return the translated character consumed by the edge
+	 */
+	int edge(int node, int k);
+
+	/**
+	 * @param node
+	 * @param k
+	 *            index of an edge, less than {@link #children(int)}
+	 * @return the node the edge leads to
+	 */
+	int child(int node, int k);
+
+	/**
+	 * @param node
+	 * @param k
+	 *            index of an edge, less than {@link #children(int)}
+	 * @return the amount the edge adds to the entry number of any word
+	 *         completed through it
+	 */
+	int offset(int node, int k);
+
+	/**
+	 * @param node
+	 * @return whether a word ends at this node
+	 */
+	boolean terminal(int node);
+
+	/**
+	 * @param node
+	 *            a {@link #terminal(int)} node
+	 * @return the entry number of the word ending at this node, less the
+	 *         offsets of the edges leading to it
+	 */
+	int entry(int node);
+
+	/**
+	 * @param entry
+	 * @return the number of surface forms of the entry
+	 */
+	int valueCount(int entry);
+
+	/**
+	 * @param entry
+	 * @param k
+	 *            index of a surface form, less than {@link #valueCount(int)}
+	 * @return the surface form
+	 */
+	String value(int entry, int k);
+
+	/**
+	 * @param node
+	 * @param cc
+	 *            the characters remaining
+	 * @return whether some word may be completed from this node with these
+	 *         characters
+	 */
+	boolean feasible(int node, CharCount cc);
+
+	/**
+	 * @return the length of the shortest word; {@link Integer#MAX_VALUE} if
+	 *         there are none
+	 */
+	int minLength();
+
+	/**
+	 * @return the length of the longest word; -1 if there are none
+	 */
+	int maxLength();
+
+	/**
+	 * @return bit mask of the characters, among the first 64, used by any word
+	 */
+	long letters();
+}
@@ -0,0 +1,463 @@
+package dfh.anagrammar;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A binary file holding a {@link CharMap} and a set of {@link Dawg} word lists
+ * laid out so that they can be memory mapped and searched where they lie,
+ * without being read into the heap. Startup then costs the same whatever the
+ * size of the lists, and processes mapping the same file share one copy of it
+ * in the page cache.
+ *
+ * <p>
+ * All numbers are big-endian. The file begins with a header:
+ *
+ * <pre>
+ * int   magic number
+ * int   format version
+ * int   length of the normalizer's name in UTF-8 bytes, followed by the bytes
+ * int   number of characters, followed by the characters in translation order
+ * int   number of lists, followed for each by
+ *       int    length of the name in UTF-8 bytes, followed by the bytes
+ *       long   position of the list in the file
+ *       int    length of the absolute path of the file the list was read
+ *              from in UTF-8 bytes, followed by the bytes; 0 if none is known
+ *       long   the size of that file
+ *       long   when that file was last modified
+ * </pre>
+ *
+ * Each list is a {@link Dawg}'s arrays one after the other; see
+ * {@link #write(Dawg, DataOutputStream)}.
+ *
+ * @author houghton
+ *
+ */
+public class LexiconIndex {
+	private static final int MAGIC = 0x414e4147; // ANAG
+	/**
+	 * to be incremented whenever the layout changes
+	 */
+	public static final int VERSION = 2;
+
+	private final CharMap charmap;
+	private final Map<String, Lexicon> lexicons;
+	/**
+	 * the file each list was read from, as it was then
+	 */
+	private final Map<String, Source> sources;
+
+	private LexiconIndex(CharMap charmap, Map<String, Lexicon> lexicons, Map<String, Source> sources) {
+		this.charmap = charmap;
+		this.lexicons = Collections.unmodifiableMap(lexicons);
+		this.sources = sources;
+	}
+
+	/**
+	 * @return the character map the lists were translated with
+	 */
+	public CharMap charmap() {
+		return charmap;
+	}
+
+	/**
+	 * @return the word lists by name
+	 */
+	public Map<String, Lexicon> lexicons() {
+		return lexicons;
+	}
+
+	/**
+	 * @param list
+	 *            the name of a list
+	 * @param source
+	 *            the file the list is now to be read from
+	 * @return whether the index holds the list as it was compiled from that
+	 *         file, the file having the same size and modification time as it
+	 *         had then
+	 */
+	public boolean current(String list, File source) {
+		Source s = sources.get(list);
+		return s != null && source.exists() && s.path.equals(source.getAbsolutePath())
+				&& s.size == source.length() && s.modified == source.lastModified();
+	}
+
+	/**
+	 * Compile word lists into an index file without recording where they came
+	 * from, so that none is {@link #current(String, File) current}.
+	 *
+	 * @param f
+	 *            file to write
+	 * @param wordLists
+	 *            words by list name
+	 * @param b
+	 *            builder for the character map
+	 * @throws IOException
+	 */
+	public static void compile(File f, Map<String, List<String>> wordLists, CharMap.Builder b) throws IOException {
+		compile(f, wordLists, Collections.emptyMap(), b);
+	}
+
+	/**
+	 * Compile word lists into an index file.
+	 *
+	 * @param f
+	 *            file to write
+	 * @param wordLists
+	 *            words by list name
+	 * @param files
+	 *            the file each list was read from, by list name
+	 * @param b
+	 *            builder for the character map
+	 * @throws IOException
+	 */
+	public static void compile(File f, Map<String, List<String>> wordLists, Map<String, File> files,
+			CharMap.Builder b) throws IOException {
+		for (List<String> list : wordLists.values())
+			b.add(list);
+		CharMap charmap = b.build();
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream h = new DataOutputStream(header);
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream d = new DataOutputStream(body);
+		Map<String, Long> positions = new LinkedHashMap<>();
+		for (Entry<String, List<String>> e : wordLists.entrySet()) {
+			positions.put(e.getKey(), (long) d.size());
+			write(new Dawg(e.getValue(), charmap), d);
+		}
+		d.flush();
+		h.writeInt(MAGIC);
+		h.writeInt(VERSION);
+		byte[] normalizer = charmap.normalizer().name().getBytes(StandardCharsets.UTF_8);
+		h.writeInt(normalizer.length);
+		h.write(normalizer);
+		char[] order = charmap.order();
+		h.writeInt(order.length);
+		for (char c : order)
+			h.writeChar(c);
+		h.writeInt(positions.size());
+		Map<String, byte[]> paths = new LinkedHashMap<>();
+		int headerSize = h.size();
+		for (String name : positions.keySet()) {
+			File source = files.get(name);
+			byte[] path = (source == null ? "" : source.getAbsolutePath()).getBytes(StandardCharsets.UTF_8);
+			paths.put(name, path);
+			headerSize += 4 + name.getBytes(StandardCharsets.UTF_8).length + 8 + 4 + path.length + 8 + 8;
+		}
+		for (Entry<String, Long> e : positions.entrySet()) {
+			byte[] name = e.getKey().getBytes(StandardCharsets.UTF_8);
+			h.writeInt(name.length);
+			h.write(name);
+			h.writeLong(headerSize + e.getValue());
+			File source = files.get(e.getKey());
+			byte[] path = paths.get(e.getKey());
+			h.writeInt(path.length);
+			h.write(path);
+			h.writeLong(source == null ? 0 : source.length());
+			h.writeLong(source == null ? 0 : source.lastModified());
+		}
+		h.flush();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+			header.writeTo(out);
+			body.writeTo(out);
+		}
+	}
+
+	/**
+	 * Write out one list:
+	 *
+	 * <pre>
+	 * int      nodes, edges, entries, surface forms, root, maxLength,
+	 *          distinct need vectors, total need vector length
+	 * long     letters
+	 * int[]    first, one per node plus one
+	 * char[]   label, one per edge
+	 * int[]    target, one per edge
+	 * int[]    offset, one per edge
+	 * byte[]   terminal, one per node
+	 * int[]    minLength, one per node
+	 * long[]   required, one per node
+	 * int[]    needIndex, one per node
+	 * int[]    start of each need vector in the need data, plus one
+	 * int[]    need data
+	 * int[]    valueStart, one per entry plus one
+	 * int[]    start of each surface form in the UTF-8 data, plus one
+	 * byte[]   UTF-8 data
+	 * </pre>
+	 */
+	private static void write(Dawg dawg, DataOutputStream d) throws IOException {
+		int nodes = dawg.terminal.length, edges = dawg.label.length;
+		int needData = 0;
+		for (int[] n : dawg.needs)
+			needData += n.length;
+		byte[][] forms = new byte[dawg.words.length][];
+		int formData = 0;
+		for (int i = 0; i < forms.length; i++) {
+			forms[i] = dawg.words[i].getBytes(StandardCharsets.UTF_8);
+			formData += forms[i].length;
+		}
+		d.writeInt(nodes);
+		d.writeInt(edges);
+		d.writeInt(dawg.valueStart.length - 1);
+		d.writeInt(forms.length);
+		d.writeInt(dawg.root);
+		d.writeInt(dawg.maxLength);
+		d.writeInt(dawg.needs.length);
+		d.writeInt(needData);
+		d.writeLong(dawg.letters);
+		for (int i : dawg.first)
+			d.writeInt(i);
+		for (char c : dawg.label)
+			d.writeChar(c);
+		for (int i : dawg.target)
+			d.writeInt(i);
+		for (int i : dawg.offset)
+			d.writeInt(i);
+		for (boolean b : dawg.terminal)
+			d.writeByte(b ? 1 : 0);
+		for (int i : dawg.minLength)
+			d.writeInt(i);
+		for (long l : dawg.required)
+			d.writeLong(l);
+		for (int i : dawg.needIndex)
+			d.writeInt(i);
+		int start = 0;
+		for (int[] n : dawg.needs) {
+			d.writeInt(start);
+			start += n.length;
+		}
+		d.writeInt(start);
+		for (int[] n : dawg.needs) {
+			for (int i : n)
+				d.writeInt(i);
+		}
+		for (int i : dawg.valueStart)
+			d.writeInt(i);
+		start = 0;
+		for (byte[] b : forms) {
+			d.writeInt(start);
+			start += b.length;
+		}
+		d.writeInt(formData);
+		for (byte[] b : forms)
+			d.write(b);
+	}
+
+	/**
+	 * Map an index file into memory.
+	 *
+	 * @param f
+	 *            the index
+	 * @param normalizer
+	 *            the normalizer the index was compiled with
+	 * @return the mapped index
+	 * @throws IOException
+	 *             if the file cannot be read, is not an index of the current
+	 *             version, was compiled with another normalizer, or is too
+	 *             large to map as a single buffer
+	 */
+	public static LexiconIndex open(File f, CharMap.Normalizer normalizer) throws IOException {
+		ByteBuffer buffer;
+		try (RandomAccessFile raf = new RandomAccessFile(f, "r"); FileChannel channel = raf.getChannel()) {
+			// positions within the buffer are ints
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException(f + " is larger than the 2GB an index may be");
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (buffer.limit() < 8 || buffer.getInt(0) != MAGIC)
+			throw new IOException(f + " is not an anagrammar index");
+		if (buffer.getInt(4) != VERSION)
+			throw new IOException(f + " is an index of an unsupported version; recompile it");
+		int p = 8;
+		byte[] name = new byte[buffer.getInt(p)];
+		p += 4;
+		for (int j = 0; j < name.length; j++)
+			name[j] = buffer.get(p++);
+		if (!normalizer.name().equals(new String(name, StandardCharsets.UTF_8)))
+			throw new IOException(f + " was compiled with another normalizer");
+		char[] order = new char[buffer.getInt(p)];
+		p += 4;
+		for (int i = 0; i < order.length; i++, p += 2)
+			order[i] = buffer.getChar(p);
+		int lists = buffer.getInt(p);
+		p += 4;
+		Map<String, Lexicon> lexicons = new LinkedHashMap<>();
+		Map<String, Source> sources = new HashMap<>();
+		for (int i = 0; i < lists; i++) {
+			name = new byte[buffer.getInt(p)];
+			p += 4;
+			for (int j = 0; j < name.length; j++)
+				name[j] = buffer.get(p++);
+			long position = buffer.getLong(p);
+			p += 8;
+			byte[] path = new byte[buffer.getInt(p)];
+			p += 4;
+			for (int j = 0; j < path.length; j++)
+				path[j] = buffer.get(p++);
+			long size = buffer.getLong(p), modified = buffer.getLong(p + 8);
+			p += 16;
+			if (position < p || position > buffer.limit())
+				throw new IOException(f + " is corrupt: a list lies outside the file");
+			String list = new String(name, StandardCharsets.UTF_8);
+			lexicons.put(list, new MappedLexicon(buffer, (int) position));
+			if (path.length > 0)
+				sources.put(list, new Source(new String(path, StandardCharsets.UTF_8), size, modified));
+		}
+		return new LexiconIndex(CharMap.fromOrder(normalizer, order), lexicons, sources);
+	}
+
+	/**
+	 * A file a list was read from, as it was when the list was compiled.
+	 */
+	private static class Source {
+		final String path;
+		final long size, modified;
+
+		Source(String path, long size, long modified) {
+			this.path = path;
+			this.size = size;
+			this.modified = modified;
+		}
+	}
+
+	/**
+	 * A {@link Dawg} read directly out of a mapped buffer.
+	 */
+	private static class MappedLexicon implements Lexicon {
+		private final ByteBuffer buffer;
+		private final int root, maxLength, nodes;
+		private final long letters;
+		private final int first, label, target, offset, terminal, minLength, required, needIndex, needStart,
+				needData, valueStart, formStart, formData;
+
+		MappedLexicon(ByteBuffer buffer, int p) {
+			this.buffer = buffer;
+			nodes = buffer.getInt(p);
+			int edges = buffer.getInt(p + 4);
+			int entries = buffer.getInt(p + 8);
+			int forms = buffer.getInt(p + 12);
+			root = buffer.getInt(p + 16);
+			maxLength = buffer.getInt(p + 20);
+			int needs = buffer.getInt(p + 24);
+			int needLength = buffer.getInt(p + 28);
+			letters = buffer.getLong(p + 32);
+			first = p + 40;
+			label = first + (nodes + 1) * 4;
+			target = label + edges * 2;
+			offset = target + edges * 4;
+			terminal = offset + edges * 4;
+			minLength = terminal + nodes;
+			required = minLength + nodes * 4;
+			needIndex = required + nodes * 8;
+			needStart = needIndex + nodes * 4;
+			needData = needStart + (needs + 1) * 4;
+			valueStart = needData + needLength * 4;
+			formStart = valueStart + (entries + 1) * 4;
+			formData = formStart + (forms + 1) * 4;
+		}
+
+		private int getInt(int base, int i) {
+			return buffer.getInt(base + i * 4);
+		}
+
+		@Override
+		public int root() {
+			return root;
+		}
+
+		@Override
+		public int size() {
+			return nodes;
+		}
+
+		@Override
+		public int children(int node) {
+			return getInt(first, node + 1) - getInt(first, node);
+		}
+
+		@Override
+		public int edge(int node, int k) {
+			return buffer.getChar(label + (getInt(first, node) + k) * 2);
+		}
+
+		@Override
+		public int child(int node, int k) {
+			return getInt(target, getInt(first, node) + k);
+		}
+
+		@Override
+		public int offset(int node, int k) {
+			return getInt(offset, getInt(first, node) + k);
+		}
+
+		@Override
+		public boolean terminal(int node) {
+			return buffer.get(terminal + node) != 0;
+		}
+
+		@Override
+		public int entry(int node) {
+			return 0;
+		}
+
+		@Override
+		public int valueCount(int entry) {
+			return getInt(valueStart, entry + 1) - getInt(valueStart, entry);
+		}
+
+		@Override
+		public String value(int entry, int k) {
+			int i = getInt(valueStart, entry) + k;
+			int start = getInt(formStart, i);
+			byte[] bytes = new byte[getInt(formStart, i + 1) - start];
+			ByteBuffer b = buffer.duplicate();
+			b.position(formData + start);
+			b.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public boolean feasible(int node, CharCount cc) {
+			if (cc.n < getInt(minLength, node))
+				return false;
+			int n = getInt(needIndex, node);
+			if (n == -1)
+				return cc.hasAll(buffer.getLong(required + node * 8));
+			int start = getInt(needStart, n), length = getInt(needStart, n + 1) - start;
+			for (int i = 0; i < length; i++) {
+				if (cc.count(i) < getInt(needData, start + i))
+					return false;
+			}
+			return true;
+		}
+
+		@Override
+		public int minLength() {
+			return getInt(minLength, root);
+		}
+
+		@Override
+		public int maxLength() {
+			return maxLength;
+		}
+
+		@Override
+		public long letters() {
+			return letters;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package dfh.anagrammar;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Bounds on a single search and a way to stop it from another thread. Once a
+ * limit is reached the workers stop at the next node they would expand, the
+ * anagrams already delivered stand, and {@link #status()} says which limit
+ * it was. A limit of 0 is no limit.
+ *
+ * <pre>
+ * Limits limits = new Limits().timeout(50, TimeUnit.MILLISECONDS).expansions(1_000_000);
+ * engine.run(phrase, -1, false, limits, handler);
+ * if (limits.status() != Status.COMPLETE)
+ * 	...
+ * </pre>
+ *
+ * A {@link Limits} object serves one search at a time. It may be reused for
+ * another once the first is over, but once cancelled it stays cancelled.
+ *
+ * @author houghton
+ *
+ */
+public class Limits {
+	private long timeout, expansions, results;
+	private volatile boolean cancelled = false;
+	/**
+	 * stops the search under way, if any
+	 */
+	private volatile Runnable stop;
+	final AtomicReference<Status> status = new AtomicReference<>();
+
+	/**
+	 * @param time
+	 * @param unit
+	 * @return this, the search to stop once this long has passed since it
+	 *         began
+	 */
+	public Limits timeout(long time, TimeUnit unit) {
+		timeout = unit.toNanos(time);
+		return this;
+	}
+
+	/**
+	 * @param n
+	 * @return this, the search to stop once it has expanded about this many
+	 *         nodes of the word lists; workers report in batches, so it may
+	 *         expand a few thousand more
+	 */
+	public Limits expansions(long n) {
+		expansions = n;
+		return this;
+	}
+
+	/**
+	 * @param n
+	 * @return this, the search to stop once it has delivered this many
+	 *         anagrams
+	 */
+	public Limits results(long n) {
+		results = n;
+		return this;
+	}
+
+	/**
+	 * Stop the search under way, and any later one, as soon as possible. This
+	 * may be called from any thread.
+	 */
+	public void cancel() {
+		cancelled = true;
+		Runnable r = stop;
+		if (r != null)
+			r.run();
+	}
+
+	/**
+	 * @return whether {@link #cancel()} has been called
+	 */
+	public boolean cancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return how the most recent search ended; null if it is still under
+	 *         way or none has begun
+	 */
+	public Status status() {
+		return status.get();
+	}
+
+	long timeout() {
+		return timeout;
+	}
+
+	long expansions() {
+		return expansions;
+	}
+
+	long results() {
+		return results;
+	}
+
+	/**
+	 * Begin a search.
+	 *
+	 * @param stop
+	 *            cancels it
+	 */
+	void attach(Runnable stop) {
+		status.set(null);
+		this.stop = stop;
+		if (cancelled)
+			stop.run();
+	}
+
+	/**
+	 * End a search that was not stopped early.
+	 */
+	void detach() {
+		stop = null;
+		status.compareAndSet(null, Status.COMPLETE);
+	}
+}
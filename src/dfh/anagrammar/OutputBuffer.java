@@ -0,0 +1,84 @@
+package dfh.anagrammar;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A growable, reusable buffer of UTF-8 encoded output. Each worker renders
+ * the anagrams it finds into a buffer of its own, which is handed off whole
+ * to the thread writing output once it is full enough.
+ *
+ * @author houghton
+ *
+ */
+public class OutputBuffer {
+	private byte[] bytes;
+	private int size = 0;
+
+	OutputBuffer(int capacity) {
+		bytes = new byte[capacity];
+	}
+
+	/**
+	 * @return the number of bytes written
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Discard everything written after the given point.
+	 *
+	 * @param size
+	 *            a previous {@link #size()}
+	 */
+	public void truncate(int size) {
+		this.size = size;
+	}
+
+	public void write(char c) {
+		if (c < 0x80) {
+			ensure(1);
+			bytes[size++] = (byte) c;
+		} else {
+			write(String.valueOf(c));
+		}
+	}
+
+	public void write(String s) {
+		int n = s.length();
+		ensure(n * 3);
+		byte[] b = bytes;
+		int j = size;
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				b[j++] = (byte) c;
+			} else if (c < 0x800) {
+				b[j++] = (byte) (0xc0 | c >> 6);
+				b[j++] = (byte) (0x80 | c & 0x3f);
+			} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				b[j++] = (byte) (0xf0 | cp >> 18);
+				b[j++] = (byte) (0x80 | cp >> 12 & 0x3f);
+				b[j++] = (byte) (0x80 | cp >> 6 & 0x3f);
+				b[j++] = (byte) (0x80 | cp & 0x3f);
+			} else {
+				b[j++] = (byte) (0xe0 | c >> 12);
+				b[j++] = (byte) (0x80 | c >> 6 & 0x3f);
+				b[j++] = (byte) (0x80 | c & 0x3f);
+			}
+		}
+		size = j;
+	}
+
+	private void ensure(int n) {
+		if (size + n > bytes.length)
+			bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + n));
+	}
+
+	void writeTo(OutputStream out) throws IOException {
+		out.write(bytes, 0, size);
+	}
+}
@@ -0,0 +1,412 @@
+package dfh.anagrammar;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Remembers which phrases have been output so that each is output only once.
+ * A phrase is a sequence of word ids, each word being given an id by
+ * {@link #id(String)}, so two phrases are the same exactly when their words
+ * are.
+ *
+ * <p>
+ * The set is divided into stripes by hash, each an open-addressing table of
+ * its own with its own lock, so workers can add phrases concurrently. Each
+ * stripe may use an equal share of a memory budget. A stripe that exceeds its
+ * share writes the phrases it holds to disk as a sorted run and starts over.
+ * From then on it can no longer tell whether a phrase it does not hold is new,
+ * so such phrases are held back; once all phrases have been added,
+ * {@link #drain(Consumer)} merges the stripe's runs and delivers those held
+ * back that were never output.
+ *
+ * @author houghton
+ *
+ */
+public class PhraseSet implements Closeable {
+	/**
+	 * the default memory budget in bytes
+	 */
+	public static final long BUDGET = 256L << 20;
+	private static final int STRIPES = 64;
+	/**
+	 * marks, in the header of a phrase's record, that the phrase has been
+	 * output
+	 */
+	private static final int OUTPUT = 1 << 31;
+
+	private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+	/**
+	 * the words, by id; guarded by itself
+	 */
+	private final List<String> words = new ArrayList<>();
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	/**
+	 * where runs are written; created when first needed
+	 */
+	private File directory;
+
+	/**
+	 * @param budget
+	 *            roughly the most memory, in bytes, the set may use, not
+	 *            counting its words
+	 */
+	public PhraseSet(long budget) {
+		long share = Math.max(1, budget / STRIPES);
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new Stripe(share);
+	}
+
+	/**
+	 * @param word
+	 * @return the word's id
+	 */
+	public int id(String word) {
+		Integer id = ids.get(word);
+		if (id == null) {
+			id = ids.computeIfAbsent(word, w -> {
+				synchronized (words) {
+					words.add(w);
+					return words.size() - 1;
+				}
+			});
+		}
+		return id;
+	}
+
+	/**
+	 * Add a phrase. This may be called concurrently.
+	 *
+	 * @param phrase
+	 *            word ids
+	 * @param length
+	 *            the number of words
+	 * @return whether the phrase is new and may be output now; false if it
+	 *         has been added before, or if that cannot yet be told, in which
+	 *         case it is delivered by {@link #drain(Consumer)} unless it has
+	 *         been output
+	 */
+	public boolean add(int[] phrase, int length) {
+		int h = hash(phrase, length);
+		Stripe s = stripes[h >>> 26];
+		synchronized (s) {
+			try {
+				return s.add(phrase, length, h);
+			} catch (IOException e) {
+				throw new RuntimeException("could not write phrases to disk", e);
+			}
+		}
+	}
+
+	/**
+	 * Deliver the phrases held back by {@link #add(int[], int)}, which must
+	 * no longer be called, and delete the runs written to disk.
+	 *
+	 * @param sink
+	 *            receives each phrase, its words separated by spaces
+	 * @return the number of phrases delivered
+	 * @throws IOException
+	 */
+	public long drain(Consumer<String> sink) throws IOException {
+		long n = 0;
+		try {
+			for (Stripe s : stripes)
+				n += s.drain(sink);
+		} finally {
+			close();
+		}
+		return n;
+	}
+
+	/**
+	 * Delete any runs written to disk.
+	 */
+	@Override
+	public void close() {
+		for (Stripe s : stripes) {
+			for (File f : s.runs)
+				f.delete();
+			s.runs.clear();
+		}
+		if (directory != null)
+			directory.delete();
+	}
+
+	private static int hash(int[] phrase, int length) {
+		int h = length;
+		for (int i = 0; i < length; i++)
+			h = 31 * h + phrase[i];
+		h *= 0x9e3779b9;
+		return h ^ h >>> 16;
+	}
+
+	private String phrase(int[] phrase, int length) {
+		StringBuilder b = new StringBuilder();
+		synchronized (words) {
+			for (int i = 0; i < length; i++) {
+				if (i > 0)
+					b.append(' ');
+				b.append(words.get(phrase[i]));
+			}
+		}
+		return b.toString();
+	}
+
+	private synchronized File run() throws IOException {
+		if (directory == null) {
+			directory = File.createTempFile("anagrammar", "");
+			directory.delete();
+			if (!directory.mkdir())
+				throw new IOException("cannot create directory " + directory);
+		}
+		File f = File.createTempFile("run", ".bin", directory);
+		f.deleteOnExit();
+		return f;
+	}
+
+	/**
+	 * An open-addressing table of phrases. Each phrase is recorded in
+	 * {@link #data} as a header holding its length and whether it has been
+	 * output, followed by its word ids; a slot holds one more than where its
+	 * phrase's record begins, or 0 if it is empty.
+	 */
+	private class Stripe {
+		private final long budget;
+		private int[] slots = new int[16];
+		private int[] hashes = new int[16];
+		private int[] data = new int[64];
+		private int used = 0, size = 0;
+		private final List<File> runs = new ArrayList<>();
+
+		Stripe(long budget) {
+			this.budget = budget;
+		}
+
+		boolean add(int[] phrase, int length, int h) throws IOException {
+			int mask = slots.length - 1;
+			int i = h & mask;
+			while (slots[i] != 0) {
+				if (hashes[i] == h && equal(slots[i] - 1, phrase, length))
+					return false;
+				i = i + 1 & mask;
+			}
+			// once phrases have been written to disk, a new one here may
+			// already be among them
+			boolean output = runs.isEmpty();
+			if (used + length + 1 > data.length)
+				data = Arrays.copyOf(data, Math.max(data.length * 2, used + length + 1));
+			data[used] = output ? length | OUTPUT : length;
+			System.arraycopy(phrase, 0, data, used + 1, length);
+			slots[i] = used + 1;
+			hashes[i] = h;
+			used += length + 1;
+			if (++size * 2 > slots.length)
+				grow();
+			if (4L * (data.length + slots.length + hashes.length) > budget)
+				spill();
+			return output;
+		}
+
+		private boolean equal(int at, int[] phrase, int length) {
+			if ((data[at] & ~OUTPUT) != length)
+				return false;
+			for (int i = 0; i < length; i++) {
+				if (data[at + 1 + i] != phrase[i])
+					return false;
+			}
+			return true;
+		}
+
+		private void grow() {
+			int[] oldSlots = slots, oldHashes = hashes;
+			slots = new int[oldSlots.length * 2];
+			hashes = new int[slots.length];
+			int mask = slots.length - 1;
+			for (int j = 0; j < oldSlots.length; j++) {
+				if (oldSlots[j] != 0) {
+					int i = oldHashes[j] & mask;
+					while (slots[i] != 0)
+						i = i + 1 & mask;
+					slots[i] = oldSlots[j];
+					hashes[i] = oldHashes[j];
+				}
+			}
+		}
+
+		/**
+		 * Write the phrases held to disk in order and start over.
+		 */
+		private void spill() throws IOException {
+			int[] order = new int[size];
+			int n = 0;
+			for (int s : slots) {
+				if (s != 0)
+					order[n++] = s - 1;
+			}
+			sort(order, new int[n], 0, n);
+			File f = run();
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+				for (int at : order) {
+					int length = data[at] & ~OUTPUT;
+					for (int i = 0; i <= length; i++)
+						out.writeInt(data[at + i]);
+				}
+			}
+			runs.add(f);
+			slots = new int[16];
+			hashes = new int[16];
+			data = new int[64];
+			used = size = 0;
+		}
+
+		/**
+		 * Merge sort record positions by their phrases.
+		 */
+		private void sort(int[] a, int[] scratch, int from, int to) {
+			if (to - from < 2)
+				return;
+			int mid = from + to >>> 1;
+			sort(a, scratch, from, mid);
+			sort(a, scratch, mid, to);
+			int i = from, j = mid, k = from;
+			while (i < mid && j < to)
+				scratch[k++] = compare(data, a[i], data, a[j]) <= 0 ? a[i++] : a[j++];
+			while (i < mid)
+				scratch[k++] = a[i++];
+			while (j < to)
+				scratch[k++] = a[j++];
+			System.arraycopy(scratch, from, a, from, to - from);
+		}
+
+		long drain(Consumer<String> sink) throws IOException {
+			if (runs.isEmpty())
+				return 0;
+			if (size > 0)
+				spill();
+			PriorityQueue<Run> queue = new PriorityQueue<>();
+			try {
+				for (File f : runs) {
+					Run r = new Run(f);
+					if (r.next())
+						queue.add(r);
+					else
+						r.close();
+				}
+				long n = 0;
+				int[] phrase = new int[16];
+				int length = -1;
+				boolean output = false;
+				while (!queue.isEmpty()) {
+					Run r = queue.poll();
+					if (length >= 0 && compare(phrase, length, r.record) != 0) {
+						if (!output) {
+							sink.accept(phrase(phrase, length));
+							n++;
+						}
+						length = -1;
+					}
+					if (length < 0) {
+						length = r.record[0] & ~OUTPUT;
+						if (phrase.length < length)
+							phrase = new int[length * 2];
+						System.arraycopy(r.record, 1, phrase, 0, length);
+						output = false;
+					}
+					output |= (r.record[0] & OUTPUT) != 0;
+					if (r.next())
+						queue.add(r);
+					else
+						r.close();
+				}
+				if (length >= 0 && !output) {
+					sink.accept(phrase(phrase, length));
+					n++;
+				}
+				return n;
+			} finally {
+				for (Run r : queue)
+					r.close();
+			}
+		}
+	}
+
+	/**
+	 * Orders records by length and then word by word.
+	 */
+	private static int compare(int[] a, int i, int[] b, int j) {
+		int la = a[i] & ~OUTPUT, lb = b[j] & ~OUTPUT;
+		if (la != lb)
+			return Integer.compare(la, lb);
+		for (int k = 1; k <= la; k++) {
+			if (a[i + k] != b[j + k])
+				return Integer.compare(a[i + k], b[j + k]);
+		}
+		return 0;
+	}
+
+	private static int compare(int[] phrase, int length, int[] record) {
+		int l = record[0] & ~OUTPUT;
+		if (length != l)
+			return Integer.compare(length, l);
+		for (int k = 0; k < length; k++) {
+			if (phrase[k] != record[k + 1])
+				return Integer.compare(phrase[k], record[k + 1]);
+		}
+		return 0;
+	}
+
+	/**
+	 * A cursor over a run on disk.
+	 */
+	private static class Run implements Comparable<Run>, Closeable {
+		private final DataInputStream in;
+		int[] record = new int[16];
+
+		Run(File f) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		}
+
+		/**
+		 * @return whether another record was read
+		 */
+		boolean next() throws IOException {
+			int header;
+			try {
+				header = in.readInt();
+			} catch (EOFException e) {
+				return false;
+			}
+			int length = header & ~OUTPUT;
+			if (record.length <= length)
+				record = new int[length * 2 + 1];
+			record[0] = header;
+			for (int i = 1; i <= length; i++)
+				record[i] = in.readInt();
+			return true;
+		}
+
+		@Override
+		public int compareTo(Run o) {
+			return compare(record, 0, o.record, 0);
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package dfh.anagrammar;
+
+import java.util.Arrays;
+
+/**
+ * Cuts a {@link Lexicon} down to the words that fit into the characters of a
+ * phrase. Only a sliver of a long list fits into a short phrase, and a search
+ * of the small {@link Dawg} of those words never visits the nodes of the rest
+ * or tests whether they are feasible.
+ *
+ * <p>
+ * The words are grouped by the set of characters they use. Only the groups
+ * whose sets are subsets of the phrase's can hold words that fit, and these
+ * are found either by looking up each subset of the phrase's characters or,
+ * if there are more of those than groups, by checking each group. Within a
+ * group, each word's character counts are packed for quick comparison with
+ * the phrase's: they take a byte apiece, eight to a long, capped at 127 so
+ * that the high bit of each byte is clear. A word fits if none of its bytes
+ * exceeds the phrase's, which is tested eight characters at a time by setting
+ * the high bit of each of the phrase's bytes and subtracting: a byte of the
+ * difference keeps its high bit just where the word's count is no greater,
+ * and no borrow crosses into the next byte. Capping both sides may let
+ * through a word that does not fit, but never keeps out one that does.
+ *
+ * @author houghton
+ *
+ */
+class Projector {
+	/**
+	 * the fewest nodes a lexicon must have for a projection of it to be worth
+	 * making
+	 */
+	static final int MIN_SIZE = 1 << 14;
+	private static final long HIGH = 0x8080808080808080L;
+	private final Lexicon base;
+	/**
+	 * the entry number of each word
+	 */
+	private final int[] entries;
+	/**
+	 * offset of each word's translation in {@link #chars}; one longer than the
+	 * number of words
+	 */
+	private final int[] start;
+	private final char[] chars;
+	/**
+	 * the distinct bit masks of the characters, among the first 64, words
+	 * use, in ascending order
+	 */
+	private final long[] keys;
+	/**
+	 * the first word of each group; one longer than the number of groups
+	 */
+	private final int[] groups;
+	/**
+	 * longs of packed counts per word
+	 */
+	private final int lanes;
+	private final long[] counts;
+	// scratch space for the walk that lists the words
+	private int words = 0, used = 0;
+	private int[] e = new int[1024], s = new int[1025];
+	private char[] cs = new char[1024], path = new char[16];
+
+	/**
+	 * @param base
+	 *            the full lexicon
+	 */
+	Projector(Lexicon base) {
+		this.base = base;
+		walk(base.root(), 0, 0);
+		int max = 0;
+		long[] masks = new long[words];
+		for (int w = 0; w < words; w++) {
+			for (int j = s[w]; j < s[w + 1]; j++) {
+				masks[w] |= Trie.bit(cs[j]);
+				max = Math.max(max, cs[j]);
+			}
+		}
+		lanes = max / 8 + 1;
+
+		// number the distinct masks in ascending order and count the words
+		// with each, then place the words group by group
+		long[] sorted = masks.clone();
+		Arrays.sort(sorted);
+		int size = 0;
+		for (int i = 0; i < words; i++) {
+			if (size == 0 || sorted[size - 1] != sorted[i])
+				sorted[size++] = sorted[i];
+		}
+		keys = Arrays.copyOf(sorted, size);
+		groups = new int[size + 1];
+		int[] group = new int[words];
+		for (int w = 0; w < words; w++) {
+			group[w] = Arrays.binarySearch(keys, masks[w]);
+			groups[group[w] + 1]++;
+		}
+		for (int i = 0; i < size; i++)
+			groups[i + 1] += groups[i];
+		int[] order = new int[words], next = Arrays.copyOf(groups, size);
+		for (int w = 0; w < words; w++)
+			order[next[group[w]]++] = w;
+		entries = new int[words];
+		start = new int[words + 1];
+		chars = new char[used];
+		counts = new long[words * lanes];
+		for (int i = 0; i < words; i++) {
+			int w = order[i];
+			entries[i] = e[w];
+			int length = s[w + 1] - s[w];
+			System.arraycopy(cs, s[w], chars, start[i], length);
+			start[i + 1] = start[i] + length;
+			for (int j = start[i]; j < start[i + 1]; j++) {
+				int c = chars[j];
+				int at = i * lanes + c / 8, shift = c % 8 * 8;
+				if ((counts[at] >>> shift & 0x7f) < 0x7f)
+					counts[at] += 1L << shift;
+			}
+		}
+		e = s = null;
+		cs = path = null;
+	}
+
+	/**
+	 * List the words completed from a node in the order of the lexicon.
+	 */
+	private void walk(int node, int depth, int offset) {
+		if (base.terminal(node)) {
+			if (words + 1 == e.length) {
+				e = Arrays.copyOf(e, e.length * 2);
+				s = Arrays.copyOf(s, s.length * 2);
+			}
+			if (used + depth > cs.length)
+				cs = Arrays.copyOf(cs, Math.max(cs.length * 2, used + depth));
+			System.arraycopy(path, 0, cs, used, depth);
+			e[words] = offset + base.entry(node);
+			used += depth;
+			s[++words] = used;
+		}
+		if (depth == path.length)
+			path = Arrays.copyOf(path, depth * 2);
+		for (int k = 0, n = base.children(node); k < n; k++) {
+			path[depth] = (char) base.edge(node, k);
+			walk(base.child(node, k), depth + 1, offset + base.offset(node, k));
+		}
+	}
+
+	/**
+	 * @param cc
+	 *            the characters of a phrase
+	 * @return a lexicon of the words that fit into them; the full one if so
+	 *         many fit that a projection would save little
+	 */
+	Lexicon project(CharCount cc) {
+		// the phrase's counts are packed the same way
+		long[] q = new long[lanes];
+		for (int l = 0; l < lanes; l++)
+			q[l] = cc.lane(l) | HIGH;
+		long mask = cc.mask();
+		Fit fit = new Fit();
+		if (Long.bitCount(mask) < 31 && 1 << Long.bitCount(mask) < keys.length) {
+			for (long m = mask;; m = m - 1 & mask) {
+				int i = Arrays.binarySearch(keys, m);
+				if (i >= 0)
+					collect(i, cc.n, q, fit);
+				if (m == 0)
+					break;
+			}
+		} else {
+			for (int i = 0; i < keys.length; i++) {
+				if ((keys[i] & ~mask) == 0)
+					collect(i, cc.n, q, fit);
+			}
+		}
+		if (fit.size > entries.length / 2)
+			return base;
+		int[][] translations = new int[fit.size][];
+		String[][] forms = new String[fit.size][];
+		for (int i = 0; i < fit.size; i++) {
+			int w = fit.words[i], entry = entries[w];
+			translations[i] = new int[start[w + 1] - start[w]];
+			for (int j = 0; j < translations[i].length; j++)
+				translations[i][j] = chars[start[w] + j];
+			forms[i] = new String[base.valueCount(entry)];
+			for (int k = 0; k < forms[i].length; k++)
+				forms[i][k] = base.value(entry, k);
+		}
+		return new Dawg(translations, forms);
+	}
+
+	/**
+	 * The words found to fit, by their position here.
+	 */
+	private static class Fit {
+		int[] words = new int[64];
+		int size = 0;
+	}
+
+	/**
+	 * Add the words of a group that fit.
+	 *
+	 * @param i
+	 *            the group
+	 * @param n
+	 *            the number of characters in the phrase
+	 * @param q
+	 *            the phrase's packed counts, high bits set
+	 * @param fit
+	 *            the words found so far
+	 */
+	private void collect(int i, int n, long[] q, Fit fit) {
+		words: for (int w = groups[i], at = w * lanes; w < groups[i + 1]; w++, at += lanes) {
+			if (start[w + 1] - start[w] > n)
+				continue;
+			for (int l = 0; l < lanes; l++) {
+				if ((q[l] - counts[at + l] & HIGH) != HIGH)
+					continue words;
+			}
+			if (fit.size == fit.words.length)
+				fit.words = Arrays.copyOf(fit.words, fit.size * 2);
+			fit.words[fit.size++] = w;
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package dfh.anagrammar;
+
+/**
+ * Turns anagrams into output on the workers that find them. Unlike an
+ * {@link OutputHandler}, a renderer is called concurrently.
+ *
+ * @author houghton
+ *
+ */
+public interface Renderer {
+	/**
+	 * @param wip
+	 *            a complete anagram
+	 * @param out
+	 *            the calling worker's buffer
+	 * @return the number of phrases written
+	 */
+	public int render(WorkInProgress wip, OutputBuffer out);
+}
@@ -0,0 +1,39 @@
+package dfh.anagrammar;
+
+/**
+ * How a search ended; see {@link Limits#status()}.
+ *
+ * @author houghton
+ *
+ */
+public enum Status {
+	/**
+	 * every anagram was found
+	 */
+	COMPLETE,
+	/**
+	 * the sample was complete
+	 */
+	SAMPLE,
+	/**
+	 * as many anagrams were delivered as {@link Limits#results(long)} allows
+	 */
+	RESULTS,
+	/**
+	 * as many nodes were expanded as {@link Limits#expansions(long)} allows
+	 */
+	EXPANSIONS,
+	/**
+	 * the time allowed by {@link Limits#timeout(long, java.util.concurrent.TimeUnit)}
+	 * ran out
+	 */
+	DEADLINE,
+	/**
+	 * {@link Limits#cancel()} was called, or the subscriber cancelled
+	 */
+	CANCELLED,
+	/**
+	 * a worker threw an exception, which the search rethrows to its caller
+	 */
+	FAILED,
+}
@@ -0,0 +1,49 @@
+package dfh.anagrammar;
+
+import dfh.anagrammar.node.Terminal;
+
+/**
+ * All the ways of finishing an anagram from a point in the grammar at which a
+ * word is about to begin with certain characters remaining. Each alternative
+ * is a word followed by the ways of finishing the anagram after it, so
+ * suffixes shared by many prefixes are stored once and the whole forms a
+ * directed acyclic graph.
+ *
+ * @author houghton
+ *
+ */
+class Suffix {
+	/**
+	 * No words remain.
+	 */
+	static final Suffix END = new Suffix(null, new int[0], new Suffix[0], Integer.MAX_VALUE);
+	/**
+	 * The anagram cannot be finished.
+	 */
+	static final Suffix NONE = new Suffix(null, new int[0], new Suffix[0], Integer.MAX_VALUE);
+
+	/**
+	 * the node whose lexicon all the words come from
+	 */
+	final Terminal terminal;
+	/**
+	 * the entry of the first word of each alternative
+	 */
+	final int[] entries;
+	/**
+	 * what follows each first word
+	 */
+	final Suffix[] rest;
+	/**
+	 * the earliest generation of the memo in which this or any suffix after
+	 * it was made
+	 */
+	final int generation;
+
+	Suffix(Terminal terminal, int[] entries, Suffix[] rest, int generation) {
+		this.terminal = terminal;
+		this.entries = entries;
+		this.rest = rest;
+		this.generation = generation;
+	}
+}
@@ -1,22 +1,79 @@
 package dfh.anagrammar;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
-public class Trie {
+/**
+ * A prefix tree of translated words, built one word at a time. Once
+ * {@link #done()} has been called on the root, the root serves as a
+ * {@link Lexicon} whose nodes are numbered breadth first.
+ * 
+ * @author houghton
+ *
+ */
+public class Trie implements Lexicon {
 	public String[] values = new String[0];
 	Trie[] children = new Trie[0];
 	int[] jumpList;
 	boolean terminal = false;
+	/**
+	 * the fewest characters needed to complete a word from this node
+	 */
+	int minLength;
+	/**
+	 * bit mask of the characters, among the first 64, that every completion
+	 * of a word from this node uses
+	 */
+	long required;
+	/**
+	 * how many of each character every completion of a word from this node
+	 * uses; null if this says nothing beyond {@link #required}
+	 */
+	int[] need;
+	/**
+	 * the most characters any word completed from this node uses
+	 */
+	int maxLength;
+	/**
+	 * bit mask of the characters, among the first 64, that any completion of
+	 * a word from this node may use
+	 */
+	long letters;
+	/**
+	 * this node's number in the {@link Lexicon}
+	 */
+	int id;
+	/**
+	 * on the root, all the nodes by number
+	 */
+	Trie[] nodes;
 
 	/**
-	 * Prepare this and all the {@link Trie} children for use.
+	 * Prepare this and all the {@link Trie} children for use. Among other
+	 * things, this summarizes what any word completed from each node must
+	 * contain so that the search can skip nodes whose words cannot fit into
+	 * the characters remaining.
 	 */
 	public void done() {
+		prepare();
+		List<Trie> queue = new ArrayList<>();
+		queue.add(this);
+		for (int i = 0; i < queue.size(); i++) {
+			Trie t = queue.get(i);
+			t.id = i;
+			for (int j : t.jumpList)
+				queue.add(t.children[j]);
+		}
+		nodes = queue.toArray(new Trie[queue.size()]);
+	}
+
+	private void prepare() {
 		int count = 0;
 		for (Trie t : children) {
 			if (t != null) {
 				count++;
-				t.done();
+				t.prepare();
 			}
 		}
 		jumpList = new int[count];
@@ -26,8 +83,41 @@ public class Trie {
 				jumpList[j++] = i;
 			}
 		}
+		summarize();
+	}
+
+	private void summarize() {
+		maxLength = terminal ? 0 : -1;
+		letters = 0;
+		for (int i : jumpList) {
+			Trie t = children[i];
+			maxLength = Math.max(maxLength, t.maxLength + 1);
+			letters |= t.letters | bit(i);
+		}
+		if (terminal) {
+			minLength = 0;
+			required = 0;
+			need = null;
+			return;
+		}
+		if (jumpList.length == 0) { // an empty list
+			minLength = Integer.MAX_VALUE;
+			required = 0;
+			need = null;
+			return;
+		}
+		minLength = Integer.MAX_VALUE;
+		required = -1L;
+		int[] n = null;
+		for (int i : jumpList) {
+			Trie t = children[i];
+			minLength = Math.min(minLength, t.minLength + 1);
+			required &= t.required | bit(i);
+			n = meet(n, needVector(t.need, t.required, i));
+		}
+		need = informative(n);
 	}
-	
+
 	/**
 	 * Store a word in the trie. Multiple words may be stored in the same node
 	 * if they all normalize down to the same translation.
@@ -61,4 +151,148 @@ public class Trie {
 			t.add(word, translation, offset);
 		}
 	}
+
+	@Override
+	public int root() {
+		return id;
+	}
+
+	@Override
+	public int size() {
+		return nodes.length;
+	}
+
+	@Override
+	public int children(int node) {
+		return nodes[node].jumpList.length;
+	}
+
+	@Override
+	public int edge(int node, int k) {
+		return nodes[node].jumpList[k];
+	}
+
+	@Override
+	public int child(int node, int k) {
+		Trie t = nodes[node];
+		return t.children[t.jumpList[k]].id;
+	}
+
+	@Override
+	public int offset(int node, int k) {
+		return 0;
+	}
+
+	@Override
+	public boolean terminal(int node) {
+		return nodes[node].terminal;
+	}
+
+	@Override
+	public int entry(int node) {
+		return node;
+	}
+
+	@Override
+	public int valueCount(int entry) {
+		return nodes[entry].values.length;
+	}
+
+	@Override
+	public String value(int entry, int k) {
+		return nodes[entry].values[k];
+	}
+
+	@Override
+	public boolean feasible(int node, CharCount cc) {
+		return nodes[node].feasible(cc);
+	}
+
+	@Override
+	public int minLength() {
+		return minLength;
+	}
+
+	@Override
+	public int maxLength() {
+		return maxLength;
+	}
+
+	@Override
+	public long letters() {
+		return letters;
+	}
+
+	static long bit(int i) {
+		return i < 64 ? 1L << i : 0;
+	}
+
+	/**
+	 * @param need
+	 *            a node's need vector
+	 * @param required
+	 *            the node's required character mask
+	 * @param i
+	 *            index of the edge leading to the node
+	 * @return the character counts every completion of a word from the parent
+	 *         through the node needs
+	 */
+	static int[] needVector(int[] need, long required, int i) {
+		int[] v;
+		if (need == null) {
+			v = new int[Math.max(i + 1, 64 - Long.numberOfLeadingZeros(required))];
+			for (long m = required; m != 0; m &= m - 1)
+				v[Long.numberOfTrailingZeros(m)] = 1;
+		} else {
+			v = Arrays.copyOf(need, Math.max(i + 1, need.length));
+		}
+		v[i]++;
+		return v;
+	}
+
+	/**
+	 * @return the element-wise minimum of two need vectors, either of which
+	 *         may be modified; if the first is null, the second
+	 */
+	static int[] meet(int[] n, int[] m) {
+		if (n == null)
+			return m;
+		if (m.length < n.length)
+			n = Arrays.copyOf(n, m.length);
+		for (int j = 0; j < n.length; j++)
+			n[j] = Math.min(n[j], m[j]);
+		return n;
+	}
+
+	/**
+	 * @return the need vector if it says more than the required character
+	 *         mask, otherwise null
+	 */
+	static int[] informative(int[] n) {
+		for (int j = 0; j < n.length; j++) {
+			if (n[j] > 1 || n[j] == 1 && j >= 64)
+				return n;
+		}
+		return null;
+	}
+
+	/**
+	 * @param cc
+	 *            the characters remaining
+	 * @return whether some word may be completed from this node with these
+	 *         characters
+	 */
+	boolean feasible(CharCount cc) {
+		return feasible(cc, minLength, required, need);
+	}
+
+	/**
+	 * The test behind {@link #feasible(CharCount)}, shared by other
+	 * {@link Lexicon} implementations that store the same node summaries.
+	 */
+	static boolean feasible(CharCount cc, int minLength, long required, int[] need) {
+		if (cc.n < minLength)
+			return false;
+		return need == null ? cc.hasAll(required) : cc.covers(need);
+	}
 }
@@ -4,71 +4,89 @@ import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
-import dfh.anagrammar.node.Node;
-import dfh.anagrammar.node.Terminal;
-
 /**
- * Holds information pertinent to a partially constructed anagram.
+ * Holds the words of a complete anagram, or of the beginning of one. The words
+ * themselves are recorded in an {@link Arena} belonging to the worker that
+ * found them, each referring to the one before it; this only says where the
+ * last is. These are only created when a search hands work off to another
+ * thread or finds an anagram.
  * 
  * @author houghton
  *
  */
 public class WorkInProgress {
-	final Trie t;
-	final Node n;
-	final CharCount cc;
-	final WorkInProgress previous;
-	final boolean overEdge;
+	final Arena arena;
+	final int at;
 
-	 WorkInProgress(Trie t, Node n, CharCount cc, WorkInProgress previous, boolean overEdge) {
-		this.t = t;
-		this.n = n;
-		this.cc = cc;
-		this.previous = previous;
-		this.overEdge = overEdge;
+	WorkInProgress(Arena arena, int at) {
+		this.arena = arena;
+		this.at = at;
 	}
 
-	public WorkInProgress(Terminal n, CharCount cc) {
-		this(n.trie, n, cc.dup(), null, true);
+	/**
+	 * @return the number of words
+	 */
+	int length() {
+		int n = 0;
+		for (int i = at; i != -1; i = arena.data[i])
+			n++;
+		return n;
 	}
 
 	/**
-	 * @return all the phrases that can be made with this linked sequence of
-	 *         works in progress
+	 * @return for each word in order, its surface forms; the phrases are all
+	 *         the ways of picking one form of each
 	 */
-	public List<List<String>> phrases() {
-		return phrases(null, true);
+	public String[][] words() {
+		int[] data = arena.data;
+		String[][] words = new String[length()][];
+		int w = words.length;
+		for (int i = at; i != -1; i = data[i]) {
+			Lexicon lexicon = arena.lexicons[data[i + 1]];
+			int entry = data[i + 2];
+			String[] forms = new String[lexicon.valueCount(entry)];
+			for (int j = 0; j < forms.length; j++)
+				forms[j] = lexicon.value(entry, j);
+			words[--w] = forms;
+		}
+		return words;
 	}
 
-	private List<List<String>> phrases(List<List<String>> p, boolean terminal) {
-		if (terminal) {
+	/**
+	 * @return all the phrases that can be made with this sequence of words
+	 */
+	public List<List<String>> phrases() {
+		int[] data = arena.data;
+		List<List<String>> p = null;
+		for (int w = at; w != -1; w = data[w]) {
+			Lexicon lexicon = arena.lexicons[data[w + 1]];
+			int entry = data[w + 2];
+			int count = lexicon.valueCount(entry);
 			if (p == null) {
-				p = new ArrayList<>(t.values.length);
-				for (int i = 0; i < t.values.length; i++) {
+				p = new ArrayList<>(count);
+				for (int i = 0; i < count; i++) {
 					LinkedList<String> phrase = new LinkedList<>();
-					phrase.add(t.values[i]);
+					phrase.add(lexicon.value(entry, i));
 					p.add(phrase);
 				}
+			} else if (count == 1) {
+				String s = lexicon.value(entry, 0);
+				for (List<String> phrase : p) {
+					phrase.add(0, s);
+				}
 			} else {
-				if (t.values.length == 1) {
+				List<List<String>> p2 = new ArrayList<>(count * p.size());
+				for (int i = 0; i < count; i++) {
+					String s = lexicon.value(entry, i);
 					for (List<String> phrase : p) {
-						phrase.add(0, t.values[0]);
-					}
-				} else {
-					List<List<String>> p2 = new ArrayList<>(t.values.length * p.size());
-					for (String s : t.values) {
-						for (List<String> phrase : p) {
-							LinkedList<String> phrase2 = new LinkedList<>(phrase);
-							phrase2.addFirst(s);
-							p2.add(phrase2);
-						}
+						LinkedList<String> phrase2 = new LinkedList<>(phrase);
+						phrase2.addFirst(s);
+						p2.add(phrase2);
 					}
-					p = p2;
 				}
+				p = p2;
 			}
 		}
-		if (previous == null)
-			return p;
-		return previous.phrases(p, overEdge);
+		return p;
 	}
 }
@@ -0,0 +1,102 @@
+package dfh.anagrammar.node;
+
+/**
+ * A list of words repeated many times. Rather than a copy of the
+ * {@link Terminal} for each repetition, the network has this one node with an
+ * edge back to itself, and the search counts the words taken here in a row:
+ * it may follow the edge back while the count is below {@link #high} and
+ * leave by any other edge once it has reached {@link #low}. If there is no
+ * upper bound, the count stops at the lower one, as more words make no
+ * difference then.
+ *
+ * @author houghton
+ *
+ */
+public class Loop extends Terminal {
+	/**
+	 * the fewest words taken here in a row; at least 1
+	 */
+	public int low;
+	/**
+	 * the most words taken here in a row; {@link Integer#MAX_VALUE} if there
+	 * is no limit
+	 */
+	public int high;
+	/**
+	 * the fewest characters a path may use from leaving this node to the
+	 * {@link End}
+	 */
+	public int minExit;
+	/**
+	 * the most characters a path may use from leaving this node to the
+	 * {@link End}; {@link Integer#MAX_VALUE} if unbounded, -1 if it cannot
+	 * reach it
+	 */
+	public int maxExit;
+
+	public Loop() {
+	}
+
+	public Loop(String listName, int low, int high) {
+		super(listName);
+		this.low = low;
+		this.high = high;
+	}
+
+	@Override
+	protected Node dupSelf() {
+		return new Loop(listName, low, high);
+	}
+
+	/**
+	 * @param count
+	 *            the words taken here in a row
+	 * @return the count once another word begins here; 0 if no more may be
+	 *         taken
+	 */
+	public int next(int count) {
+		if (high == Integer.MAX_VALUE)
+			return Math.min(count + 1, low);
+		return count < high ? count + 1 : 0;
+	}
+
+	/**
+	 * @param count
+	 *            the words taken here in a row counting the one about to begin
+	 * @return whether the search may leave by an edge other than the one back
+	 *         here after this many words
+	 */
+	public boolean canLeave(int count) {
+		return count >= low;
+	}
+
+	/**
+	 * @param count
+	 *            the words taken here in a row counting the one about to begin
+	 * @return the fewest characters a path from the start of this word to the
+	 *         {@link End} may use
+	 */
+	public int minToEnd(int count) {
+		long words = Math.max(low - count + 1, 1);
+		return (int) Math.min(Integer.MAX_VALUE, minExit + words * trie.minLength());
+	}
+
+	/**
+	 * @param count
+	 *            the words taken here in a row counting the one about to begin
+	 * @return the most characters a path from the start of this word to the
+	 *         {@link End} may use
+	 */
+	public int maxToEnd(int count) {
+		if (maxExit < 0)
+			return -1;
+		long words = high - count + 1;
+		return (int) Math.min(Integer.MAX_VALUE, (long) maxExit + words * trie.maxLength());
+	}
+
+	@Override
+	String graphvizSpec() {
+		return graphvizID() + " [label=\"" + listName.replaceAll("\"", "\\\"") + "{" + low + ","
+				+ (high == Integer.MAX_VALUE ? "" : high) + "}\"];";
+	}
+}
@@ -1,11 +1,19 @@
 package dfh.anagrammar.node;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import dfh.anagrammar.Trie;
+import dfh.anagrammar.Lexicon;
 
 /**
  * A tuple of an input node and an output node.
@@ -14,14 +22,61 @@ import dfh.anagrammar.Trie;
  *
  */
 public class Pipe {
+	private static final int MAGIC = 0x414e4746; // ANGF
+	/**
+	 * to be incremented whenever compiling a grammar comes to produce a
+	 * different network or the layout written by
+	 * {@link #write(DataOutputStream)} changes
+	 */
+	public static final int VERSION = 3;
+	private static final byte NODE = 0, START = 1, END = 2, TERMINAL = 3, LOOP = 4;
+
 	public Node in;
 	public Node out;
+	/**
+	 * the terminals, by index; null until the tries are attached
+	 */
+	private Terminal[] terminals;
+	/**
+	 * how big the network is and how much compiling shrank it; null if it was
+	 * not compiled from a grammar
+	 */
+	String compilation;
 
 	public Pipe(Node in, Node out) {
 		this.in = in;
 		this.out = out;
 	}
 
+	/**
+	 * @return the number of nodes reachable from the input node
+	 */
+	public int states() {
+		int n = 0;
+		for (Iterator<Node> i = in.connectedNodes().iterator(); i.hasNext(); i.next())
+			n++;
+		return n;
+	}
+
+	/**
+	 * @return the number of edges among the nodes reachable from the input
+	 *         node
+	 */
+	public int edges() {
+		int n = 0;
+		for (Node o : in.connectedNodes())
+			n += o.edges.length;
+		return n;
+	}
+
+	/**
+	 * @return how big the network is and how much compiling the grammar shrank
+	 *         it; null if it was not compiled from a grammar
+	 */
+	public String compilation() {
+		return compilation;
+	}
+
 	public String graphvizDOT() {
 		return graphvizDOT("DFA");
 	}
@@ -40,16 +95,113 @@ public class Pipe {
 		return names;
 	}
 
-	public void attachTries(Map<String, Trie> catalog) throws MissingWordlistException {
+	/**
+	 * Attach tries to the {@link Terminal} nodes and precompute for each the
+	 * bounds on what a path from it to the {@link End} may consume.
+	 * 
+	 * @param catalog
+	 *            tries by list name
+	 * @throws MissingWordlistException
+	 */
+	public void attachTries(Map<String, ? extends Lexicon> catalog) throws MissingWordlistException {
+		List<Terminal> terminals = new ArrayList<>();
 		for (Node n : in.connectedNodes()) {
 			if (n instanceof Terminal) {
 				Terminal t = (Terminal) n;
-				Trie trie = catalog.get(t.listName);
+				Lexicon trie = catalog.get(t.listName);
 				if (trie == null)
 					throw new MissingWordlistException("cannot find wordlist " + t.listName);
 				t.trie = trie;
+				t.index = terminals.size();
+				terminals.add(t);
+			}
+		}
+		computeBounds(terminals);
+		this.terminals = terminals.toArray(new Terminal[terminals.size()]);
+	}
+
+	/**
+	 * @return the {@link Terminal} nodes, each at its
+	 *         {@link Terminal#index index}; null if the tries have not been
+	 *         attached
+	 */
+	public Terminal[] terminals() {
+		return terminals;
+	}
+
+	/**
+	 * Fixed point iterations giving each terminal the set of characters
+	 * reachable from it and the minimum and maximum number of characters
+	 * consumed on the way to the {@link End}.
+	 */
+	private void computeBounds(List<Terminal> terminals) {
+		final long infinity = Integer.MAX_VALUE;
+		int size = terminals.size();
+		Map<Node, Integer> index = new HashMap<>();
+		for (int i = 0; i < size; i++)
+			index.put(terminals.get(i), i);
+		long[] reach = new long[size], min = new long[size], max = new long[size];
+		Arrays.fill(min, infinity);
+		Arrays.fill(max, -1);
+		boolean changed = true;
+		for (int round = 0; changed; round++) {
+			changed = false;
+			for (int i = 0; i < size; i++) {
+				Terminal t = terminals.get(i);
+				long r = t.trie.letters(), lo = infinity, hi = -1;
+				for (Node n : t.edges) {
+					if (n == t && t instanceof Loop) {
+						// counted separately below
+						continue;
+					} else if (n instanceof End) {
+						lo = 0;
+						hi = Math.max(hi, 0);
+					} else {
+						Integer j = index.get(n);
+						if (j == null)
+							continue;
+						r |= reach[j];
+						lo = Math.min(lo, min[j]);
+						hi = Math.max(hi, max[j]);
+					}
+				}
+				// the fewest and most words taken here on the way
+				long fewest = 1, most = 1;
+				if (t instanceof Loop) {
+					Loop l = (Loop) t;
+					l.minExit = (int) lo;
+					l.maxExit = (int) hi;
+					fewest = l.low;
+					most = l.high;
+				}
+				if (t.trie.maxLength() < 0) {
+					// an empty list leads nowhere
+					lo = infinity;
+					hi = -1;
+				} else {
+					lo = Math.min(infinity, lo + fewest * t.trie.minLength());
+					if (hi >= 0)
+						hi = Math.min(infinity, hi + most * t.trie.maxLength());
+				}
+				if (round > size && hi > max[i]) {
+					// still growing after every simple path has been tried, so
+					// this lies on or leads to a cycle
+					hi = infinity;
+				}
+				if (r != reach[i] || lo != min[i] || hi != max[i]) {
+					reach[i] = r;
+					min[i] = lo;
+					max[i] = hi;
+					changed = true;
+				}
 			}
 		}
+		for (int i = 0; i < size; i++) {
+			Terminal t = terminals.get(i);
+			t.reach = reach[i];
+			t.minToEnd = (int) min[i];
+			t.maxToEnd = (int) max[i];
+		}
 	}
 
 	public String graphvizDOT(String name) {
@@ -57,6 +209,8 @@ public class Pipe {
 		buffer.append("digraph ");
 		buffer.append(name);
 		buffer.append(" {\n");
+		if (compilation != null)
+			buffer.append("  // ").append(compilation).append("\n");
 		buffer.append("  label=\"").append(name).append("\";\n");
 		buffer.append("  fontsize=20;\n");
 		buffer.append("  rankdir=LR;\n");
@@ -72,4 +226,122 @@ public class Pipe {
 		buffer.append("}\n");
 		return buffer.toString();
 	}
+
+	/**
+	 * Write a compiled network, without its tries, so that it can be
+	 * {@link #read(DataInputStream) read} back instead of compiling its grammar
+	 * again. All numbers are big-endian:
+	 *
+	 * <pre>
+	 * int    magic number
+	 * int    {@link #VERSION}
+	 * UTF    {@link #compilation()}, or the empty string if there is none
+	 * int    number of nodes, the input node first, followed for each by
+	 *        byte   kind of node
+	 *        UTF    list name, for a {@link Terminal}
+	 *        int    low and high bounds, for a {@link Loop}
+	 *        int    number of edges, followed by the index of each target
+	 * int    index of the output node
+	 * </pre>
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		Map<Node, Integer> index = new HashMap<>();
+		List<Node> nodes = new ArrayList<>();
+		for (Node n : in.connectedNodes()) {
+			index.put(n, nodes.size());
+			nodes.add(n);
+		}
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(compilation == null ? "" : compilation);
+		out.writeInt(nodes.size());
+		for (Node n : nodes) {
+			if (n instanceof Loop) {
+				Loop l = (Loop) n;
+				out.writeByte(LOOP);
+				out.writeUTF(l.listName);
+				out.writeInt(l.low);
+				out.writeInt(l.high);
+			} else if (n instanceof Terminal) {
+				out.writeByte(TERMINAL);
+				out.writeUTF(((Terminal) n).listName);
+			} else if (n instanceof Start) {
+				out.writeByte(START);
+			} else if (n instanceof End) {
+				out.writeByte(END);
+			} else {
+				out.writeByte(NODE);
+			}
+			out.writeInt(n.edges.length);
+			for (Node o : n.edges)
+				out.writeInt(index.get(o));
+		}
+		Integer end = index.get(this.out);
+		out.writeInt(end == null ? -1 : end);
+	}
+
+	/**
+	 * @param in
+	 *            what was written by {@link #write(DataOutputStream)}
+	 * @return the network
+	 * @throws IOException
+	 *             if the input is not a network written by this version
+	 */
+	public static Pipe read(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC)
+			throw new IOException("not a compiled grammar");
+		if (in.readInt() != VERSION)
+			throw new IOException("compiled grammar is of another version");
+		String compilation = in.readUTF();
+		int size = in.readInt();
+		if (size < 1)
+			throw new IOException("compiled grammar is empty");
+		Node[] nodes = new Node[size];
+		int[][] edges = new int[size][];
+		for (int i = 0; i < size; i++) {
+			byte kind = in.readByte();
+			switch (kind) {
+			case LOOP:
+				nodes[i] = new Loop(in.readUTF(), in.readInt(), in.readInt());
+				break;
+			case TERMINAL:
+				nodes[i] = new Terminal(in.readUTF());
+				break;
+			case START:
+				Start s = new Start();
+				s.isDFA = true;
+				nodes[i] = s;
+				break;
+			case END:
+				nodes[i] = new End();
+				break;
+			case NODE:
+				nodes[i] = new Node();
+				break;
+			default:
+				throw new IOException("unknown kind of node: " + kind);
+			}
+			edges[i] = new int[in.readInt()];
+			for (int j = 0; j < edges[i].length; j++) {
+				edges[i][j] = in.readInt();
+				if (edges[i][j] < 0 || edges[i][j] >= size)
+					throw new IOException("edge to nonexistent node " + edges[i][j]);
+			}
+		}
+		for (int i = 0; i < size; i++) {
+			nodes[i].edges = new Node[edges[i].length];
+			for (int j = 0; j < edges[i].length; j++)
+				nodes[i].edges[j] = nodes[edges[i][j]];
+		}
+		int end = in.readInt();
+		if (end < -1 || end >= size)
+			throw new IOException("nonexistent output node " + end);
+		Pipe p = new Pipe(nodes[0], end == -1 ? null : nodes[end]);
+		if (!compilation.isEmpty())
+			p.compilation = compilation;
+		return p;
+	}
 }
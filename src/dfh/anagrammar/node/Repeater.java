@@ -2,7 +2,32 @@ package dfh.anagrammar.node;
 
 import java.util.Map;
 
+/**
+ * An item repeated between {@link #low} and {@link #high} times.
+ * <p>
+ * Only a repetition of a single word list costs the same however large its
+ * bounds: once they pass {@link #UNROLL} it compiles to one {@link Loop}. The
+ * list may be named directly, through a rule that is nothing but the list, or
+ * as a repetition of such a repetition, provided the numbers of words the two
+ * together allow have no gap; <code>ten{1,10}</code> with
+ * <code>ten -&gt; &lt;a&gt;{1,10}</code> is <code>&lt;a&gt;{1,100}</code>, but
+ * <code>three{1,2}</code> with <code>three -&gt; &lt;a&gt;{3}</code> allows only
+ * 3 or 6.
+ * <p>
+ * Any other repetition -- of a sequence, of alternatives, or of a repetition
+ * with gaps -- is compiled to a copy of the repeated network for each
+ * repetition up to the upper bound, or the lower one if there is no upper
+ * bound, so its size grows with the bound and, when repetitions are nested,
+ * with the product of the bounds. A loop may also be written out this way
+ * when the grammar is determinized; see {@link Start#toDFA()}.
+ */
 public class Repeater extends Node {
+	/**
+	 * A single list repeated at most this many times is unrolled into a copy
+	 * of its {@link Terminal} per repetition; more, and it becomes a
+	 * {@link Loop}.
+	 */
+	public static final int UNROLL = 4;
 
 	Node repeated;
 	int low, high;
@@ -23,6 +48,9 @@ public class Repeater extends Node {
 
 	@Override
 	protected Pipe reduce() {
+		Words w = words(this);
+		if (w != null && (w.high == Integer.MAX_VALUE ? w.low : w.high) > UNROLL)
+			return loop(w);
 		Node s = new Node(), e = new Node(), openEnd = s;
 		Pipe p1 = repeated.reduce(), p2 = dup(p1);
 		for (int i = 0; i < low; i++) {
@@ -47,6 +75,85 @@ public class Repeater extends Node {
 		return new Pipe(s, e);
 	}
 
+	private static Pipe loop(Words w) {
+		Node s = new Node(), e = new Node();
+		Loop l = new Loop(w.list, w.low, w.high);
+		s.addEdge(l);
+		l.addEdge(l);
+		l.addEdge(e);
+		if (w.none)
+			s.addEdge(e);
+		return new Pipe(s, e);
+	}
+
+	/**
+	 * @return the words of a single list the node derives; null if it
+	 *         derives words of several lists, or numbers of words of one list
+	 *         with gaps between them
+	 */
+	private static Words words(Node n) {
+		if (n instanceof Terminal)
+			return new Words(((Terminal) n).listName, false, 1, 1);
+		if ((n instanceof Sequence || n instanceof Alternater) && n.edges.length == 1)
+			return words(n.edges[0]);
+		if (!(n instanceof Repeater))
+			return null;
+		Repeater r = (Repeater) n;
+		Words w = words(r.repeated);
+		if (w == null || r.high == 0)
+			return null;
+		// the fewest repetitions that take any words
+		long first = Math.max(r.low, 1);
+		long low, high;
+		if (w.none) {
+			// each repetition may take anything from none up
+			if (w.low > 1)
+				return null;
+			low = 1;
+		} else {
+			// r repetitions take from r * w.low to r * w.high words, which
+			// meets the range for one more repetition if this does for the
+			// first
+			if (w.high != Integer.MAX_VALUE && r.high > first && w.low > first * (w.high - w.low) + 1)
+				return null;
+			low = first * w.low;
+		}
+		if (w.high == Integer.MAX_VALUE || r.high == Integer.MAX_VALUE) {
+			high = Integer.MAX_VALUE;
+		} else {
+			high = (long) r.high * w.high;
+			if (high >= Integer.MAX_VALUE)
+				return null;
+		}
+		if (low >= Integer.MAX_VALUE)
+			return null;
+		return new Words(w.list, w.none || r.low == 0, (int) low, (int) high);
+	}
+
+	/**
+	 * Some number of words of one list: none, if {@link #none}, or from
+	 * {@link #low} to {@link #high}.
+	 */
+	private static class Words {
+		final String list;
+		final boolean none;
+		/**
+		 * at least 1
+		 */
+		final int low;
+		/**
+		 * {@link Integer#MAX_VALUE} if there is no limit
+		 */
+		final int high;
+
+		Words(String list, boolean none, int low, int high) {
+			this.list = list;
+			this.none = none;
+			this.low = low;
+			this.high = high;
+		}
+	}
+
 	@Override
 	public void replaceReferences(Map<String, Node> replacements) {
 		if (repeated instanceof Placeholder) {
@@ -1,9 +1,15 @@
 package dfh.anagrammar.node;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.Set;
 
@@ -19,7 +25,11 @@ public class Start extends Node {
 
 	/**
 	 * The completing step that reduces the network of nodes compiled out of the
-	 * grammar into a DFA usable by anagrammar.
+	 * grammar into a DFA usable by anagrammar. No node of the DFA has more than
+	 * one edge to a {@link Terminal} for any word list, so each sequence of
+	 * word lists the grammar allows is derived along exactly one path; a
+	 * {@link Loop} that would share a node's edges with another terminal for
+	 * its list is unrolled to make this so.
 	 * 
 	 * @return {@link Pipe} representing the initial network reduced to a simple
 	 *         DFA
@@ -70,6 +80,255 @@ public class Start extends Node {
 		}
 	}
 	
+	/**
+	 * Subset construction over the simplified network, in which every edge
+	 * leads to a {@link Terminal} or the {@link End}. Each node of the new
+	 * network stands for the set of nodes of the old one that a sequence of
+	 * word lists can lead to, so the terminals for a word list reachable from
+	 * a node are merged into one. A {@link Loop} is never merged, since the
+	 * count of words taken in it belongs to it alone; where a set of nodes
+	 * leads to a loop and to another terminal for the same list, the loop is
+	 * first unrolled, as {@link Repeater} unrolls short repetitions, and the
+	 * terminals of the copies merged like any others.
+	 * 
+	 * @return the new {@link End}
+	 */
+	private End determinize() {
+		for (Loop l = sharedLoop(); l != null; l = sharedLoop())
+			unroll(l);
+		End end = new End();
+		Map<Set<Node>, Terminal> states = new HashMap<>();
+		Queue<Set<Node>> work = new LinkedList<>();
+		edges = successors(Collections.singleton(this), states, work, end);
+		while (!work.isEmpty()) {
+			Set<Node> set = work.remove();
+			states.get(set).edges = successors(set, states, work, end);
+		}
+		return end;
+	}
+
+	/**
+	 * @return a {@link Loop} that some set of nodes reached in the subset
+	 *         construction leads to along with another terminal for its list;
+	 *         null if there is none
+	 */
+	private Loop sharedLoop() {
+		Set<Set<Node>> seen = new HashSet<>();
+		Queue<Set<Node>> work = new LinkedList<>();
+		work.add(Collections.singleton(this));
+		while (!work.isEmpty()) {
+			for (Set<Node> targets : byList(work.remove()).values()) {
+				if (targets.size() > 1) {
+					for (Node o : targets) {
+						if (o instanceof Loop)
+							return (Loop) o;
+					}
+				}
+				if (seen.add(targets))
+					work.add(targets);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Replace a {@link Loop} with a copy of its terminal for each repetition,
+	 * the last copy leading back to itself if there is no upper bound.
+	 * 
+	 * @param l
+	 */
+	private void unroll(Loop l) {
+		boolean bounded = l.high != Integer.MAX_VALUE;
+		Terminal[] copies = new Terminal[bounded ? l.high : l.low];
+		for (int i = 0; i < copies.length; i++)
+			copies[i] = new Terminal(l.listName);
+		for (int i = 0; i < copies.length; i++) {
+			if (i + 1 >= l.low) {
+				for (Node o : l.edges) {
+					if (o != l)
+						copies[i].addEdge(o);
+				}
+			}
+			if (i + 1 < copies.length)
+				copies[i].addEdge(copies[i + 1]);
+			else if (!bounded)
+				copies[i].addEdge(copies[i]);
+		}
+		for (Node n : connectedNodes()) {
+			if (n == l)
+				continue;
+			for (int i = 0; i < n.edges.length; i++) {
+				if (n.edges[i] == l)
+					n.edges[i] = copies[0];
+			}
+		}
+	}
+
+	/**
+	 * @param set
+	 *            nodes of the old network
+	 * @return the terminals the nodes lead to, by word list
+	 */
+	private static Map<String, Set<Node>> byList(Set<Node> set) {
+		Map<String, Set<Node>> byList = new LinkedHashMap<>();
+		for (Node n : set) {
+			for (Node o : n.edges) {
+				if (o instanceof Terminal) {
+					Set<Node> targets = byList.get(((Terminal) o).listName);
+					if (targets == null) {
+						targets = new LinkedHashSet<>();
+						byList.put(((Terminal) o).listName, targets);
+					}
+					targets.add(o);
+				}
+			}
+		}
+		return byList;
+	}
+
+	/**
+	 * @param set
+	 *            nodes of the old network
+	 * @param states
+	 *            the nodes of the new network made so far, by the nodes of the
+	 *            old one they stand for
+	 * @param work
+	 *            sets of old nodes whose new node's edges are not yet known
+	 * @param end
+	 *            the new {@link End}
+	 * @return the edges of the new node standing for the set
+	 */
+	private static Node[] successors(Set<Node> set, Map<Set<Node>, Terminal> states, Queue<Set<Node>> work,
+			End end) {
+		// any loop is alone in its list's set, there being no shared loops
+		Map<String, Set<Node>> byList = byList(set);
+		boolean accepts = false;
+		for (Node n : set) {
+			for (Node o : n.edges) {
+				if (o instanceof End)
+					accepts = true;
+			}
+		}
+		List<Node> successors = new ArrayList<>(byList.size() + 1);
+		for (Entry<String, Set<Node>> e : byList.entrySet()) {
+			Terminal t = states.get(e.getValue());
+			if (t == null) {
+				Node o = e.getValue().iterator().next();
+				if (o instanceof Loop) {
+					Loop l = (Loop) o;
+					t = new Loop(l.listName, l.low, l.high);
+				} else {
+					t = new Terminal(e.getKey());
+				}
+				states.put(e.getValue(), t);
+				work.add(e.getValue());
+			}
+			successors.add(t);
+		}
+		if (accepts)
+			successors.add(end);
+		return successors.toArray(new Node[successors.size()]);
+	}
+
+	/**
+	 * Hopcroft's partition refinement over the determinized network, merging
+	 * the nodes from which the same sequences of word lists lead to the
+	 * {@link End}. Since a node's word list labels every edge into it, the
+	 * nodes are first partitioned by word list, and each block is only ever
+	 * split by the predecessors of another.
+	 */
+	private void minimize() {
+		List<Node> nodes = new ArrayList<>();
+		Map<Node, Integer> index = new HashMap<>();
+		for (Node n : connectedNodes()) {
+			index.put(n, nodes.size());
+			nodes.add(n);
+		}
+		int size = nodes.size();
+		List<List<Integer>> predecessors = new ArrayList<>(size);
+		for (int i = 0; i < size; i++)
+			predecessors.add(new ArrayList<>());
+		for (int i = 0; i < size; i++) {
+			for (Node o : nodes.get(i).edges)
+				predecessors.get(index.get(o)).add(i);
+		}
+
+		// the initial partition: this node, the end, each loop, and the other
+		// terminals by word list; the edge from a loop back to itself is not
+		// an ordinary transition, so loops are never merged
+		int[] block = new int[size];
+		List<List<Integer>> blocks = new ArrayList<>();
+		Map<String, Integer> byList = new HashMap<>();
+		for (int i = 0; i < size; i++) {
+			Node n = nodes.get(i);
+			boolean merges = n instanceof Terminal && !(n instanceof Loop);
+			Integer b = merges ? byList.get(((Terminal) n).listName) : null;
+			if (b == null) {
+				b = blocks.size();
+				blocks.add(new ArrayList<>());
+				if (merges)
+					byList.put(((Terminal) n).listName, b);
+			}
+			block[i] = b;
+			blocks.get(b).add(i);
+		}
+		Queue<Integer> work = new LinkedList<>();
+		List<Boolean> waiting = new ArrayList<>();
+		for (int b = 0; b < blocks.size(); b++) {
+			work.add(b);
+			waiting.add(true);
+		}
+
+		while (!work.isEmpty()) {
+			int splitter = work.remove();
+			waiting.set(splitter, false);
+			// the predecessors of the splitter, by block
+			Map<Integer, Set<Integer>> touched = new LinkedHashMap<>();
+			for (int i : blocks.get(splitter)) {
+				for (int p : predecessors.get(i)) {
+					Set<Integer> t = touched.get(block[p]);
+					if (t == null) {
+						t = new LinkedHashSet<>();
+						touched.put(block[p], t);
+					}
+					t.add(p);
+				}
+			}
+			for (Entry<Integer, Set<Integer>> e : touched.entrySet()) {
+				int b = e.getKey();
+				Set<Integer> in = e.getValue();
+				List<Integer> members = blocks.get(b);
+				if (in.size() == members.size())
+					continue;
+				int nb = blocks.size();
+				List<Integer> split = new ArrayList<>(in);
+				members.removeAll(in);
+				blocks.add(split);
+				for (int i : split)
+					block[i] = nb;
+				if (waiting.get(b)) {
+					work.add(nb);
+					waiting.add(true);
+				} else {
+					// refining by the smaller half is as good as by both
+					int smaller = split.size() < members.size() ? nb : b;
+					work.add(smaller);
+					waiting.add(smaller == nb);
+					waiting.set(b, smaller == b);
+				}
+			}
+		}
+
+		// keep the first node of each block and point all edges at such nodes
+		for (List<Integer> members : blocks) {
+			Node n = nodes.get(members.get(0));
+			Node[] edges = n.edges;
+			n.edges = new Node[0];
+			for (Node o : edges)
+				n.addEdge(nodes.get(blocks.get(block[index.get(o)]).get(0)));
+		}
+	}
+
 	@Override
 	protected Pipe reduce() {
 		if (isDFA) {
@@ -86,7 +345,12 @@ public class Start extends Node {
 			}
 			isDFA = true;
 			simplify();
-			return new Pipe(this, e);
+			Pipe dfa = new Pipe(this, determinize());
+			int states = dfa.states(), edges = dfa.edges();
+			minimize();
+			dfa.compilation = String.format("%d states and %d edges, minimized from %d and %d", dfa.states(),
+					dfa.edges(), states, edges);
+			return dfa;
 		}
 	}
 
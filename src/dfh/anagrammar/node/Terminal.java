@@ -1,6 +1,6 @@
 package dfh.anagrammar.node;
 
-import dfh.anagrammar.Trie;
+import dfh.anagrammar.Lexicon;
 
 /**
  * Represents a list of words.
@@ -9,8 +9,29 @@ import dfh.anagrammar.Trie;
  *
  */
 public class Terminal extends Node {
-	public Trie trie;
+	public Lexicon trie;
 	public String listName;
+	/**
+	 * bit mask of the characters, among the first 64, that a path from the
+	 * start of a word at this node to the {@link End} may use; see
+	 * {@link Pipe#attachTries(java.util.Map)}
+	 */
+	public long reach;
+	/**
+	 * the fewest characters a path from the start of a word at this node to
+	 * the {@link End} may use
+	 */
+	public int minToEnd;
+	/**
+	 * the most characters a path from the start of a word at this node to the
+	 * {@link End} may use; {@link Integer#MAX_VALUE} if unbounded
+	 */
+	public int maxToEnd;
+	/**
+	 * the position of this node among the terminals of its network; see
+	 * {@link Pipe#terminals()}
+	 */
+	public int index;
 	
 	public Terminal() {
 	}
@@ -0,0 +1,121 @@
+package dfh.anagrammar.ui;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+
+import dfh.anagrammar.BatchHandler;
+import dfh.anagrammar.OutputHandler;
+import dfh.anagrammar.PhraseSet;
+
+/**
+ * Prints the anagrams of a batch of phrases, each line tagged with the phrase
+ * it is an anagram of.
+ *
+ * <p>
+ * Unordered, lines are printed as soon as they are found, so the anagrams of
+ * different phrases are interleaved. Ordered, the anagrams of each search are
+ * held until it is done, and the anagrams of each phrase are printed together,
+ * in the order of the phrases in the batch.
+ *
+ * @author houghton
+ *
+ */
+class BatchPrinter implements BatchHandler {
+	private final PrintStream out;
+	private final List<String> phrases;
+	/**
+	 * the memory budget of the set of phrases seen for each phrase; 0 if all
+	 * phrases are printed
+	 */
+	private final long budget;
+	private final boolean ordered;
+	/**
+	 * for each phrase whose search is done but which has not yet been printed,
+	 * its untagged anagrams
+	 */
+	private final String[] pending;
+	/**
+	 * the index of the next phrase to print when ordered
+	 */
+	private int next = 0;
+	private int found = 0;
+	private final ThreadLocal<ByteArrayOutputStream> buffer = new ThreadLocal<>();
+	private final ThreadLocal<PhrasePrinter> printer = new ThreadLocal<>();
+
+	BatchPrinter(PrintStream out, List<String> phrases, long budget, boolean ordered) {
+		this.out = out;
+		this.phrases = phrases;
+		this.budget = budget;
+		this.ordered = ordered;
+		this.pending = ordered ? new String[phrases.size()] : null;
+	}
+
+	@Override
+	public OutputHandler handler(int[] group) {
+		PhraseSet seen = budget > 0 ? new PhraseSet(budget) : null;
+		if (ordered) {
+			ByteArrayOutputStream b = new ByteArrayOutputStream();
+			buffer.set(b);
+			printer.set(new PhrasePrinter(printStream(b), seen));
+		} else {
+			String[] tags = new String[group.length];
+			for (int i = 0; i < group.length; i++)
+				tags[i] = phrases.get(group[i]);
+			printer.set(new PhrasePrinter(out, seen, tags));
+		}
+		return printer.get();
+	}
+
+	@Override
+	public void done(int[] group, int n) {
+		try {
+			printer.get().finish();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		int printed = printer.get().printed();
+		printer.remove();
+		String anagrams = null;
+		if (ordered) {
+			try {
+				anagrams = buffer.get().toString("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+			buffer.remove();
+		}
+		synchronized (this) {
+			found += printed * group.length;
+			if (!ordered)
+				return;
+			for (int i : group)
+				pending[i] = anagrams;
+			while (next < pending.length && pending[next] != null) {
+				String tag = phrases.get(next);
+				for (String line : pending[next].split("\\r?\\n")) {
+					if (!line.isEmpty())
+						out.println(tag + '\t' + line);
+				}
+				pending[next++] = null;
+			}
+		}
+	}
+
+	/**
+	 * @return the total number of anagrams printed over all phrases
+	 */
+	synchronized int found() {
+		return found;
+	}
+
+	private static PrintStream printStream(ByteArrayOutputStream b) {
+		try {
+			return new PrintStream(b, false, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
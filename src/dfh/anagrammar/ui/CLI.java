@@ -1,30 +1,47 @@
 package dfh.anagrammar.ui;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 import dfh.anagrammar.CharMap;
 import dfh.anagrammar.CharMap.Builder;
+import dfh.anagrammar.Dawg;
 import dfh.anagrammar.Engine;
-import dfh.anagrammar.OutputHandler;
-import dfh.anagrammar.WorkInProgress;
+import dfh.anagrammar.PhraseSet;
+import dfh.anagrammar.Status;
+import dfh.anagrammar.Lexicon;
+import dfh.anagrammar.LexiconIndex;
+import dfh.anagrammar.Limits;
 import dfh.anagrammar.grammar.BadRuleException;
 import dfh.anagrammar.grammar.Grammar;
 import dfh.anagrammar.grammar.RecursionException;
@@ -53,13 +70,28 @@ public class CLI {
 				{ { "out", 'o', FileCoercion.C },
 						{ "dump output -- anagrams, grammar, or Graphviz spec -- into this file" } }, //
 				{ { "sample", 's', Integer.class }, { "produce only a sample of anagrams" }, { Range.positive() } }, //
-				{ { "random", 'r' }, { "generate anagrams in random order" } }, //
+				{ { "random", 'r' },
+						{ "generate anagrams in random order; in conjunction with --sample, "
+								+ "draw the sample uniformly from all the anagrams" } }, //
 				{ { "unique", 'u' },
 						{ "in case the grammar can produce the same phrase in more than one way, "
-								+ "this ensures that each name is only listed once; "
-								+ "NOTE: for the sake of memory efficiency and speed, hashcodes are used to determine uniqueness, "
-								+ "so some anagrams may be dropped altogether" } }, //
-				{ { "count", 'c' }, { "print out the number of anagrams found" } }, //
+								+ "this ensures that each name is only listed once" } }, //
+				{ { "unique-memory", Integer.class, (int) (PhraseSet.BUDGET >> 20) },
+						{ "megabytes of memory --unique may use per phrase before it must write the phrases "
+								+ "it has seen to disk" },
+						{ Range.positive() } }, //
+				{ { "timeout", Integer.class },
+						{ "stop looking for anagrams after this many milliseconds, keeping those found" },
+						{ Range.positive() } }, //
+				{ { "count", 'c' },
+						{ "print out the number of anagrams found; unless --unique or --sample is also given, "
+								+ "they are only counted, not listed" } }, //
+				{ { "batch", 'b', String.class },
+						{ "read phrases one per line from this file, or from standard input if it is -, "
+								+ "and print the anagrams of each after the phrase and a tab" } }, //
+				{ { "ordered" },
+						{ "in conjunction with --batch, print the anagrams of each phrase together "
+								+ "in the order the phrases were read rather than as they are found" } }, //
 				{}, //
 				{ { "default", String.class }, { "set the default grammar" } }, //
 				{ { "list", 'l' }, { "list available grammars" } }, //
@@ -67,11 +99,22 @@ public class CLI {
 				{ { "dot" },
 						{ "print out a Graphviz graph specification for the "
 								+ "finite state automaton representation of a grammar" } }, //
-				{ { "show-grammar" }, { "dump out the selected grammar" } }, //
+				{ { "show-grammar" },
+						{ "dump out the selected grammar and the size of the automaton it compiles to" } }, //
 				{ { "show-words", String.class }, { "print the chose word list to stdout" } }, //
+				{ { "serve" },
+						{ "load all configured grammars and word lists once and answer queries over HTTP on the "
+								+ "loopback interface; see README" } }, //
+				{ { "port", Integer.class, 7474 }, { "port on which to serve queries" }, { Range.positive() } }, //
+				{ { "compile" },
+						{ "compile all configured word lists into a binary index in " + indexFile()
+								+ ", which is used in their place until any of them changes" } }, //
 				{}, //
 				{ { "threads", Integer.class, Runtime.getRuntime().availableProcessors() },
 						{ "maximum number of threads" }, { Range.positive() } }, //
+				{ { "memo", Integer.class, Engine.MEMO_CAPACITY },
+						{ "the most words the partial solutions a search remembers for reuse may hold, "
+								+ "bounding the memory they take; 0 turns memoization off" } }, //
 				{}, //
 				{ { "initialize" }, { "generate a skeleton configuration file in " + configurationDirectory()
 						+ "; you must then modify this configuration file to specify grammars and word lists" } }, //
@@ -121,8 +164,20 @@ public class CLI {
 			didSomething = true;
 			listWords();
 		}
+		if (cli.bool("compile")) {
+			didSomething = true;
+			compileIndex();
+		}
+		if (cli.bool("serve")) {
+			serve();
+			return;
+		}
 		if (didSomething)
 			return;
+		if (cli.isSet("batch")) {
+			batch();
+			return;
+		}
 		try {
 			checkConfig();
 			if (cli.argList().isEmpty())
@@ -139,43 +194,71 @@ public class CLI {
 			else
 				grammar = config().getValue("grammars.default");
 			Pipe p = getGrammar(grammar);
-			Map<String, List<String>> wordLists = getWordLists(p.requiredTries());
-			Builder b = new CharMap.Builder();
 			int sample = cli.isSet("sample") ? cli.integer("sample") : -1;
-			Engine e = new Engine(cli.integer("threads"), sample, cli.bool("random"), wordLists, p, b);
-			Set<Integer> seen = new HashSet<>();
-			e.run(inputPhrase, new OutputHandler() {
-				@Override
-				public void handle(WorkInProgress wip) {
-					for (List<String> phrase : wip.phrases()) {
-						StringBuffer b = new StringBuffer();
-						for (String word : phrase) {
-							b.append(word);
-							b.append(' ');
-						}
-						String w = b.toString().trim();
-						if (w.length() > 0) {
-							if (unique) {
-								Integer i = w.hashCode();
-								if (!seen.contains(i)) {
-									seen.add(i);
-									out.println(w);
-								}
-							} else
-								out.println(w);
-						}
-					}
-				}
-			});
+			Engine e = makeEngine(p, sample);
+			if (cli.bool("count") && !unique && sample == -1) {
+				BigInteger n = e.count(inputPhrase);
+				System.out.printf("found %d anagram%s\n", n, n.equals(BigInteger.ONE) ? "" : "s");
+				return;
+			}
+			PhraseSet seen = unique ? phraseSet() : null;
+			Limits limits = new Limits();
+			if (cli.isSet("timeout"))
+				limits.timeout(cli.integer("timeout"), TimeUnit.MILLISECONDS);
+			long printed = e.render(inputPhrase, sample, cli.bool("random"), limits, new PhraseRenderer(seen), out);
+			if (seen != null)
+				printed += seen.drain(out::println);
 			out.flush();
+			if (limits.status() == Status.DEADLINE)
+				System.err.printf("stopped after %d milliseconds; some anagrams may not have been found\n",
+						cli.integer("timeout"));
 			if (cli.bool("count"))
-				System.out.printf("\nfound %d anagram%s\n", e.found(), e.found() == 1 ? "" : "s");
+				System.out.printf("\nfound %d anagram%s\n", printed, printed == 1 ? "" : "s");
 		} catch (IOException | BadConfigurationException | BadRuleException | RecursionException
 				| MissingWordlistException e) {
 			cli.die(e.getMessage());
 		}
 	}
 
+	/**
+	 * Find the anagrams of each phrase in a file, sharing one engine among
+	 * them.
+	 */
+	private static void batch() {
+		try {
+			checkConfig();
+			String source = cli.string("batch");
+			BufferedReader reader = new BufferedReader(
+					source.equals("-") ? new InputStreamReader(System.in) : new FileReader(source));
+			List<String> phrases = new ArrayList<>();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() > 0)
+					phrases.add(line);
+			}
+			reader.close();
+			String grammar;
+			if (cli.isSet("grammar"))
+				grammar = cli.string("grammar");
+			else
+				grammar = config().getValue("grammars.default");
+			Pipe p = getGrammar(grammar);
+			int sample = cli.isSet("sample") ? cli.integer("sample") : -1;
+			Engine e = makeEngine(p, sample);
+			BatchPrinter printer = new BatchPrinter(out, phrases, cli.bool("unique") ? budget() : 0,
+					cli.bool("ordered"));
+			e.batch(phrases, sample, cli.bool("random"), printer);
+			out.flush();
+			if (cli.bool("count"))
+				System.out.printf("\nfound %d anagram%s of %d phrase%s\n", printer.found(),
+						printer.found() == 1 ? "" : "s", phrases.size(), phrases.size() == 1 ? "" : "s");
+		} catch (IOException | BadConfigurationException | BadRuleException | RecursionException
+				| MissingWordlistException | InterruptedException e) {
+			cli.die(e.getMessage());
+		}
+	}
+
 	private static void listWords() {
 		try {
 			checkConfig();
@@ -229,8 +312,10 @@ public class CLI {
 			while ((line = reader.readLine()) != null)
 				out.println(line);
 			reader.close();
+			out.println();
+			out.println("# compiles to " + getGrammar(grammar).compilation());
 			out.flush();
-		} catch (IOException | BadConfigurationException e) {
+		} catch (IOException | BadConfigurationException | BadRuleException | RecursionException e) {
 			cli.die("could not produce dot file: " + e.getMessage());
 		}
 	}
@@ -304,14 +389,138 @@ public class CLI {
 		}
 	}
 
+	private static void compileIndex() {
+		try {
+			checkConfig();
+			Map<String, List<String>> wordLists = getWordLists(config().getKeys("word_lists"));
+			Map<String, File> files = new HashMap<>();
+			for (String listName : wordLists.keySet())
+				files.put(listName, wordListFile(listName));
+			LexiconIndex.compile(indexFile(), wordLists, files, new CharMap.Builder());
+			System.out.printf("compiled %d word list%s into %s\n", wordLists.size(), wordLists.size() == 1 ? "" : "s",
+					indexFile());
+		} catch (IOException | BadConfigurationException e) {
+			cli.die("could not compile word lists: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Load every configured grammar, and the word lists they require, and
+	 * serve queries until killed.
+	 */
+	private static void serve() {
+		try {
+			checkConfig();
+			Map<String, Pipe> grammars = new LinkedHashMap<>();
+			Set<String> lists = new HashSet<>();
+			for (String g : config().getKeys("grammars.definitions")) {
+				Pipe p = getGrammar(g);
+				grammars.put(g, p);
+				lists.addAll(p.requiredTries());
+			}
+			CharMap charmap;
+			Map<String, ? extends Lexicon> lexicons;
+			LexiconIndex index = getIndex(lists);
+			if (index == null) {
+				Map<String, List<String>> wordLists = getWordLists(lists);
+				Builder b = new CharMap.Builder();
+				for (List<String> words : wordLists.values())
+					b.add(words);
+				charmap = b.build();
+				Map<String, Dawg> dawgs = new HashMap<>();
+				for (Entry<String, List<String>> e : wordLists.entrySet())
+					dawgs.put(e.getKey(), new Dawg(e.getValue(), charmap));
+				lexicons = dawgs;
+			} else {
+				charmap = index.charmap();
+				lexicons = index.lexicons();
+			}
+			int threads = cli.integer("threads");
+			Map<String, Engine> engines = new HashMap<>();
+			for (Entry<String, Pipe> e : grammars.entrySet()) {
+				Engine engine = new Engine(threads, -1, false, charmap, lexicons, e.getValue());
+				engine.memoize(cli.integer("memo"));
+				engines.put(e.getKey(), engine);
+			}
+			Server server = new Server(engines, config().getValue("grammars.default"), cli.integer("port"));
+			server.start();
+			System.out.printf("serving %d grammar%s at http://%s:%d/anagrams\n", engines.size(),
+					engines.size() == 1 ? "" : "s", server.address().getHostString(), server.address().getPort());
+		} catch (IOException | BadConfigurationException | BadRuleException | RecursionException
+				| MissingWordlistException e) {
+			cli.die("could not serve anagrams: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the memory budget in bytes of the set of phrases seen under
+	 *         <code>--unique</code>
+	 */
+	private static long budget() {
+		return (long) cli.integer("unique-memory") << 20;
+	}
+
+	private static PhraseSet phraseSet() {
+		return new PhraseSet(budget());
+	}
+
+	/**
+	 * Make an engine for the grammar, using the compiled index if it is
+	 * current and otherwise reading the word lists.
+	 */
+	private static Engine makeEngine(Pipe p, int sample)
+			throws BadConfigurationException, IOException, MissingWordlistException {
+		int threads = cli.integer("threads");
+		boolean random = cli.bool("random");
+		LexiconIndex index = getIndex(p.requiredTries());
+		Engine e;
+		if (index != null) {
+			e = new Engine(threads, sample, random, index.charmap(), index.lexicons(), p);
+		} else {
+			Map<String, List<String>> wordLists = getWordLists(p.requiredTries());
+			Builder b = new CharMap.Builder();
+			e = new Engine(threads, sample, random, wordLists, p, b);
+		}
+		e.memoize(cli.integer("memo"));
+		return e;
+	}
+
+	/**
+	 * @return the compiled index, or null if there is none, if it was
+	 *         compiled with another normalizer, or if any list required is not
+	 *         in it as read from the file now configured for the list, that
+	 *         file unchanged since
+	 */
+	private static LexiconIndex getIndex(Collection<String> requiredTries)
+			throws BadConfigurationException, IOException {
+		File f = indexFile();
+		if (!f.exists())
+			return null;
+		LexiconIndex index;
+		try {
+			index = LexiconIndex.open(f, CharMap.BASIC_NORMALIZER);
+		} catch (IOException e) {
+			return null;
+		}
+		for (String listName : requiredTries) {
+			if (!index.current(listName, wordListFile(listName)))
+				return null;
+		}
+		return index;
+	}
+
+	private static File wordListFile(String listName) throws IOException, BadConfigurationException {
+		String path = config().getValue("word_lists." + listName);
+		return new File(configurationDirectory(), path);
+	}
+
 	private static Map<String, List<String>> getWordLists(Collection<String> requiredTries)
 			throws BadConfigurationException, IOException {
 		Map<String, List<String>> wordLists = new HashMap<>();
 		for (String listName : requiredTries) {
 			List<String> words = new LinkedList<>();
 			wordLists.put(listName, words);
-			String path = config().getValue("word_lists." + listName);
-			File f = new File(configurationDirectory(), path);
+			File f = wordListFile(listName);
 			if (f.exists()) {
 				BufferedReader reader = new BufferedReader(new FileReader(f));
 				String line;
@@ -325,6 +534,11 @@ public class CLI {
 		return wordLists;
 	}
 
+	/**
+	 * @return the grammar's automaton, read from the cache if the grammar has
+	 *         been compiled before as it now is and otherwise compiled and
+	 *         cached
+	 */
 	private static Pipe getGrammar(String grammar)
 			throws BadConfigurationException, IOException, BadRuleException, RecursionException {
 		if (grammar == null)
@@ -339,7 +553,92 @@ public class CLI {
 		while ((line = reader.readLine()) != null)
 			lines.add(line);
 		reader.close();
-		return Grammar.parse(lines.toArray(new String[lines.size()]));
+		String[] rules = lines.toArray(new String[lines.size()]);
+		File cached = cachedGrammarFile(grammar, rules);
+		if (cached.exists()) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cached)))) {
+				return Pipe.read(in);
+			} catch (IOException e) {
+				// damaged; compile it again
+			}
+		}
+		Pipe p = Grammar.parse(rules);
+		cacheGrammar(grammar, cached, p);
+		return p;
+	}
+
+	/**
+	 * @return where the automaton compiled from these rules is cached; the
+	 *         name holds a hash of the rules and of the compiler's version, so
+	 *         an automaton is never read back once either changes
+	 */
+	private static File cachedGrammarFile(String grammar, String[] rules) {
+		MessageDigest digest = sha256();
+		digest.update((Pipe.VERSION + "\n").getBytes(StandardCharsets.UTF_8));
+		for (String rule : rules)
+			digest.update((rule + "\n").getBytes(StandardCharsets.UTF_8));
+		StringBuilder b = new StringBuilder(cachePrefix(grammar));
+		hex(digest.digest(), 16, b);
+		return new File(grammarCacheDirectory(), b.append(".dfa").toString());
+	}
+
+	/**
+	 * @return the start of the name of every automaton cached for the
+	 *         grammar; names that read the same once made safe for a file
+	 *         name are told apart by a hash of the name itself
+	 */
+	private static String cachePrefix(String grammar) {
+		StringBuilder b = new StringBuilder(grammar.replaceAll("[^\\w-]", "_")).append('.');
+		hex(sha256().digest(grammar.getBytes(StandardCharsets.UTF_8)), 4, b);
+		return b.append('.').toString();
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Append the first bytes of a digest in hexadecimal.
+	 */
+	private static void hex(byte[] digest, int bytes, StringBuilder b) {
+		for (byte x : Arrays.copyOf(digest, bytes))
+			b.append(String.format("%02x", x));
+	}
+
+	/**
+	 * Write the automaton to the cache, replacing any compiled from earlier
+	 * versions of the grammar. The cache is only an optimization, so failing
+	 * to write it is not an error.
+	 */
+	private static void cacheGrammar(String grammar, File cached, Pipe p) {
+		File dir = cached.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			return;
+		File tmp = null;
+		try {
+			tmp = File.createTempFile("grammar", ".tmp", dir);
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+				p.write(out);
+			}
+			// readers never see a partial file
+			Files.move(tmp.toPath(), cached.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+			tmp = null;
+			String prefix = cachePrefix(grammar);
+			for (File f : dir.listFiles()) {
+				if (f.getName().startsWith(prefix) && f.getName().endsWith(".dfa") && !f.equals(cached))
+					f.delete();
+			}
+		} catch (IOException e) {
+			// compiled again next time
+		} finally {
+			if (tmp != null)
+				tmp.delete();
+		}
 	}
 
 	public static void checkConfig() throws IOException, BadConfigurationException {
@@ -403,6 +702,14 @@ public class CLI {
 		return new File(configurationDirectory(), "config");
 	}
 
+	private static File indexFile() {
+		return new File(configurationDirectory(), "index");
+	}
+
+	private static File grammarCacheDirectory() {
+		return new File(configurationDirectory(), "cache");
+	}
+
 	private static ConfigurationNode config() throws IOException, BadConfigurationException {
 		if (config == null) {
 			File f = configFile();
@@ -0,0 +1,110 @@
+package dfh.anagrammar.ui;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+
+import dfh.anagrammar.OutputHandler;
+import dfh.anagrammar.PhraseSet;
+import dfh.anagrammar.WorkInProgress;
+
+/**
+ * Prints each anagram on a line of its own.
+ *
+ * @author houghton
+ *
+ */
+class PhrasePrinter implements OutputHandler {
+	private final PrintStream out;
+	/**
+	 * the phrases printed so far; null unless printing only unique phrases
+	 */
+	private final PhraseSet seen;
+	/**
+	 * phrases with which to tag each line; null if lines are not tagged
+	 */
+	private final String[] tags;
+	private int printed = 0;
+
+	/**
+	 * @param out
+	 *            where to print
+	 * @param seen
+	 *            if not null, each phrase is printed only once; see the CLI's
+	 *            <code>--unique</code> option
+	 */
+	PhrasePrinter(PrintStream out, PhraseSet seen) {
+		this(out, seen, null);
+	}
+
+	/**
+	 * @param out
+	 *            where to print
+	 * @param seen
+	 *            if not null, each phrase is printed only once
+	 * @param tags
+	 *            the anagram is printed once for each tag, after the tag and a
+	 *            tab
+	 */
+	PhrasePrinter(PrintStream out, PhraseSet seen, String[] tags) {
+		this.out = out;
+		this.seen = seen;
+		this.tags = tags;
+	}
+
+	@Override
+	public void handle(WorkInProgress wip) {
+		int[] ids = null;
+		for (List<String> phrase : wip.phrases()) {
+			StringBuffer b = new StringBuffer();
+			for (String word : phrase) {
+				b.append(word);
+				b.append(' ');
+			}
+			String w = b.toString().trim();
+			if (w.length() > 0) {
+				if (seen != null) {
+					if (ids == null)
+						ids = new int[phrase.size()];
+					int n = 0;
+					for (String word : phrase) {
+						if (!word.isEmpty())
+							ids[n++] = seen.id(word);
+					}
+					if (!seen.add(ids, n))
+						continue;
+				}
+				print(w);
+			}
+		}
+	}
+
+	private void print(String w) {
+		printed++;
+		if (tags == null)
+			out.println(w);
+		else {
+			for (String tag : tags)
+				out.println(tag + '\t' + w);
+		}
+	}
+
+	/**
+	 * Print any phrases whose uniqueness could not be settled as they were
+	 * found. This must be called once the search is done.
+	 * 
+	 * @throws IOException
+	 */
+	void finish() throws IOException {
+		if (seen != null)
+			seen.drain(this::print);
+	}
+
+	/**
+	 * @return the number of phrases printed, not counting their repetition
+	 *         under different tags
+	 */
+	int printed() {
+		return printed;
+	}
+}
@@ -0,0 +1,75 @@
+package dfh.anagrammar.ui;
+
+import dfh.anagrammar.OutputBuffer;
+import dfh.anagrammar.PhraseSet;
+import dfh.anagrammar.Renderer;
+import dfh.anagrammar.WorkInProgress;
+
+/**
+ * Renders each anagram on a line of its own; the concurrent counterpart of
+ * {@link PhrasePrinter}.
+ *
+ * @author houghton
+ *
+ */
+class PhraseRenderer implements Renderer {
+	private static final String NEWLINE = System.lineSeparator();
+	/**
+	 * the phrases rendered so far; null unless rendering only unique phrases
+	 */
+	private final PhraseSet seen;
+
+	/**
+	 * @param seen
+	 *            if not null, each phrase is rendered only once; see the CLI's
+	 *            <code>--unique</code> option; the phrases it holds back must
+	 *            be printed once the search is done
+	 */
+	PhraseRenderer(PhraseSet seen) {
+		this.seen = seen;
+	}
+
+	@Override
+	public int render(WorkInProgress wip, OutputBuffer out) {
+		String[][] words = wip.words();
+		int[][] ids = null;
+		int[] phrase = null;
+		if (seen != null) {
+			ids = new int[words.length][];
+			for (int i = 0; i < words.length; i++) {
+				ids[i] = new int[words[i].length];
+				for (int j = 0; j < ids[i].length; j++)
+					ids[i][j] = seen.id(words[i][j]);
+			}
+			phrase = new int[words.length];
+		}
+		// which form of each word the current phrase uses
+		int[] forms = new int[words.length];
+		int rendered = 0;
+		while (true) {
+			int start = out.size(), n = 0;
+			for (int i = 0; i < words.length; i++) {
+				String word = words[i][forms[i]];
+				if (word.isEmpty())
+					continue;
+				if (n > 0)
+					out.write(' ');
+				out.write(word);
+				if (seen != null)
+					phrase[n] = ids[i][forms[i]];
+				n++;
+			}
+			if (n == 0 || seen != null && !seen.add(phrase, n))
+				out.truncate(start);
+			else {
+				out.write(NEWLINE);
+				rendered++;
+			}
+			int i = words.length - 1;
+			while (i >= 0 && ++forms[i] == words[i].length)
+				forms[i--] = 0;
+			if (i < 0)
+				return rendered;
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package dfh.anagrammar.ui;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import dfh.anagrammar.Engine;
+import dfh.anagrammar.Limits;
+import dfh.anagrammar.PhraseSet;
+import dfh.anagrammar.WorkInProgress;
+
+/**
+ * Answers anagram queries over HTTP on the loopback interface, so that the
+ * grammars and word lists are loaded only once and the engines stay warm from
+ * one query to the next. A query is a GET request of the form
+ *
+ * <pre>
+ * /anagrams?phrase=mary+jones&amp;grammar=female_name&amp;sample=10&amp;random=true&amp;unique=true&amp;timeout=100
+ * </pre>
+ *
+ * All parameters but <code>phrase</code> are optional; they have the same
+ * meaning as the corresponding command line options. The anagrams are
+ * returned as plain text, one per line, streamed as they are found. The
+ * search pauses whenever the client falls behind and stops if it goes away.
+ * If the search fails, the failure is logged and the connection dropped
+ * before the response is ended. Queries are served concurrently.
+ *
+ * @author houghton
+ *
+ */
+class Server {
+	/**
+	 * the most anagrams a query may have found but not yet written
+	 */
+	private static final int WINDOW = 256;
+	private final Map<String, Engine> engines;
+	private final String defaultGrammar;
+	private final HttpServer server;
+
+	/**
+	 * @param engines
+	 *            an engine for each grammar served
+	 * @param defaultGrammar
+	 *            the grammar used when a query names none
+	 * @param port
+	 *            the port to listen on
+	 * @throws IOException
+	 */
+	Server(Map<String, Engine> engines, String defaultGrammar, int port) throws IOException {
+		this.engines = engines;
+		this.defaultGrammar = defaultGrammar;
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/anagrams", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				// a query that throws leaves the exchange open, and the server
+				// drops the connection without ending the response, so the
+				// client can tell it was cut short
+				query(exchange);
+				exchange.close();
+			}
+		});
+		server.setExecutor(Executors.newCachedThreadPool());
+	}
+
+	/**
+	 * Begin accepting queries.
+	 */
+	void start() {
+		server.start();
+	}
+
+	/**
+	 * Stop accepting queries, abandoning those under way.
+	 */
+	void stop() {
+		server.stop(0);
+	}
+
+	/**
+	 * @return the address the server is listening on
+	 */
+	InetSocketAddress address() {
+		return server.getAddress();
+	}
+
+	private void query(HttpExchange exchange) throws IOException {
+		if (!"GET".equals(exchange.getRequestMethod())) {
+			error(exchange, 405, "only GET is supported");
+			return;
+		}
+		Map<String, String> params = parameters(exchange.getRequestURI().getRawQuery());
+		String phrase = params.get("phrase");
+		if (phrase == null || phrase.trim().isEmpty()) {
+			error(exchange, 400, "no phrase provided");
+			return;
+		}
+		String grammar = params.containsKey("grammar") ? params.get("grammar") : defaultGrammar;
+		Engine e = engines.get(grammar);
+		if (e == null) {
+			error(exchange, 404, "unknown grammar: " + grammar);
+			return;
+		}
+		int sample = -1;
+		if (params.containsKey("sample")) {
+			sample = positive(params.get("sample"));
+			if (sample <= 0) {
+				error(exchange, 400, "sample must be a positive integer");
+				return;
+			}
+		}
+		Limits limits = new Limits();
+		if (params.containsKey("timeout")) {
+			int timeout = positive(params.get("timeout"));
+			if (timeout <= 0) {
+				error(exchange, 400, "timeout must be a positive integer");
+				return;
+			}
+			limits.timeout(timeout, TimeUnit.MILLISECONDS);
+		}
+		boolean random = flag(params, "random"), unique = flag(params, "unique");
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(200, 0); // chunked
+		PrintStream out = new PrintStream(new BufferedOutputStream(exchange.getResponseBody()), false, "UTF-8");
+		PhrasePrinter printer = new PhrasePrinter(out, unique ? new PhraseSet(PhraseSet.BUDGET) : null);
+		Query q = new Query();
+		e.publisher(phrase.trim(), sample, random, limits).subscribe(q);
+		// the anagrams are written here rather than on the workers, so a slow
+		// client holds up nothing but its own search
+		int unchecked = 0;
+		try {
+			for (List<WorkInProgress> found = q.take(); !found.isEmpty(); found = q.take()) {
+				for (WorkInProgress wip : found)
+					printer.handle(wip);
+				// checking flushes the stream, so it is done only now and then
+				unchecked += found.size();
+				if (unchecked >= WINDOW) {
+					unchecked = 0;
+					if (out.checkError()) {
+						// the client has gone away
+						q.subscription.cancel();
+						break;
+					}
+				}
+				q.subscription.request(found.size());
+			}
+		} catch (InterruptedException ex) {
+			q.subscription.cancel();
+			Thread.currentThread().interrupt();
+		}
+		if (q.failure != null) {
+			System.err.printf("query for \"%s\" failed\n", phrase);
+			q.failure.printStackTrace();
+			out.flush();
+			throw new IOException("search failed", q.failure);
+		}
+		printer.finish();
+		out.flush();
+	}
+
+	/**
+	 * Holds the anagrams of a query from when a worker finds them until the
+	 * thread handling the query writes them. As more are requested only as
+	 * they are written, no more than {@link #WINDOW} are ever held.
+	 */
+	private static class Query implements Flow.Subscriber<WorkInProgress> {
+		private final List<WorkInProgress> found = new ArrayList<>();
+		private boolean over = false;
+		volatile Flow.Subscription subscription;
+		/**
+		 * what stopped the search, if it failed
+		 */
+		volatile Throwable failure;
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(WINDOW);
+		}
+
+		@Override
+		public synchronized void onNext(WorkInProgress wip) {
+			found.add(wip);
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void onError(Throwable throwable) {
+			failure = throwable;
+			over = true;
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void onComplete() {
+			over = true;
+			notifyAll();
+		}
+
+		/**
+		 * @return the anagrams found since the last call, waiting for some if
+		 *         there are none yet; empty once the search is over
+		 * @throws InterruptedException
+		 */
+		synchronized List<WorkInProgress> take() throws InterruptedException {
+			while (found.isEmpty() && !over)
+				wait();
+			List<WorkInProgress> taken = new ArrayList<>(found);
+			found.clear();
+			return taken;
+		}
+	}
+
+	/**
+	 * @return the value as an integer; 0 if it is not one
+	 */
+	private static int positive(String value) {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException ex) {
+			return 0;
+		}
+	}
+
+	private static boolean flag(Map<String, String> params, String name) {
+		String v = params.get(name);
+		return v != null && (v.isEmpty() || v.equals("true") || v.equals("1"));
+	}
+
+	private static void error(HttpExchange exchange, int code, String message) throws IOException {
+		byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(code, bytes.length);
+		try (OutputStream body = exchange.getResponseBody()) {
+			body.write(bytes);
+		}
+	}
+
+	private static Map<String, String> parameters(String query) throws UnsupportedEncodingException {
+		Map<String, String> params = new HashMap<>();
+		if (query == null)
+			return params;
+		for (String pair : query.split("&")) {
+			if (pair.isEmpty())
+				continue;
+			int i = pair.indexOf('=');
+			String key = i == -1 ? pair : pair.substring(0, i);
+			String value = i == -1 ? "" : pair.substring(i + 1);
+			params.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+		}
+		return params;
+	}
+}
@@ -1,11 +1,39 @@
 package dfh.anagrammar;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
 
 import org.junit.Test;
 
@@ -14,9 +42,26 @@ import dfh.anagrammar.grammar.BadRuleException;
 import dfh.anagrammar.grammar.Grammar;
 import dfh.anagrammar.grammar.RecursionException;
 import dfh.anagrammar.node.MissingWordlistException;
+import dfh.anagrammar.node.Node;
 import dfh.anagrammar.node.Pipe;
+import dfh.anagrammar.node.Terminal;
 
 public class EngineTest {
+	/**
+	 * a grammar with repetition and alternatives that most tests of the ways
+	 * of running a search share, with the lists of {@link #wordLists()}
+	 */
+	private static final String[] BNF = new String[] { "TOP -> <a>{1,3} <b>{1,2} | <b> <a>{2}" };
+
+	/**
+	 * @return word lists for {@link #BNF}, which a test may add to
+	 */
+	private static Map<String, List<String>> wordLists() {
+		Map<String, List<String>> wordLists = new HashMap<>();
+		wordLists.put("a", new ArrayList<>(Arrays.asList("ab", "ba", "a", "b", "c")));
+		wordLists.put("b", new ArrayList<>(Arrays.asList("abc", "bc", "c", "ca", "b")));
+		return wordLists;
+	}
 
 	@Test
 	public void sample() throws BadRuleException, RecursionException, MissingWordlistException {
@@ -61,11 +106,963 @@ public class EngineTest {
 		assertEquals("ab bb", outputList.get(0));
 	}
 
+	@Test
+	public void pruned() throws BadRuleException, RecursionException, MissingWordlistException {
+		// repeated letters give nodes need vectors
+		List<String> words = Arrays.asList("aa", "aab", "Aab", "abab", "abc", "baa", "bb", "cab", "c", "cc", "acca");
+		Builder builder = new Builder();
+		builder.add(words);
+		CharMap charmap = builder.build();
+		Trie trie = new Trie();
+		for (String w : words)
+			trie.add(w, charmap.translate(w), 0);
+		trie.done();
+		String[] phrases = "a b aa ab abc aabb bbc aabbcc acc abcabc".split(" ");
+		for (String phrase : phrases) {
+			CharCount cc = charmap.count(phrase);
+			for (int node = 0; node < trie.size(); node++) {
+				if (completes(trie, node, cc))
+					assertTrue(phrase + " at " + node, trie.feasible(node, cc));
+			}
+		}
+		// every word needs two a, which abc has the letters but not the count
+		// for
+		Trie twice = new Trie();
+		for (String w : Arrays.asList("aab", "aac"))
+			twice.add(w, charmap.translate(w), 0);
+		twice.done();
+		assertFalse(twice.feasible(twice.root(), charmap.count("abc")));
+		assertTrue(twice.feasible(twice.root(), charmap.count("aabc")));
+
+		// the pruned search finds what trying every sequence of words finds
+		String[] bnf = new String[] { "TOP -> <a> <a>? <a>?" };
+		Map<String, List<String>> wordLists = new HashMap<>();
+		wordLists.put("a", words);
+		for (String phrase : phrases) {
+			List<String> expected = new ArrayList<>();
+			for (String w : words) {
+				if (anagram(phrase, w))
+					expected.add(w);
+				for (String v : words) {
+					if (anagram(phrase, w, v))
+						expected.add(w + " " + v);
+					for (String u : words) {
+						if (anagram(phrase, w, v, u))
+							expected.add(w + " " + v + " " + u);
+					}
+				}
+			}
+			List<String> plain = collectMatches(phrase, bnf, wordLists, 0, false, 0);
+			List<String> memoized = collectMatches(phrase, bnf, wordLists, 0, false);
+			Collections.sort(expected);
+			Collections.sort(plain);
+			Collections.sort(memoized);
+			assertEquals(phrase, expected, plain);
+			assertEquals(phrase, expected, memoized);
+		}
+	}
+
+	@Test
+	public void lookahead() throws BadRuleException, RecursionException, MissingWordlistException {
+		String[] bnf = new String[] { "TOP -> <a> <b> | <b> | <c>+" };
+		Map<String, List<String>> wordLists = new HashMap<>();
+		wordLists.put("a", Arrays.asList("x", "xyz"));
+		wordLists.put("b", Arrays.asList("ab", "c", "abcd"));
+		wordLists.put("c", Arrays.asList("q", "qq"));
+		Builder builder = new Builder();
+		for (List<String> words : wordLists.values())
+			builder.add(words);
+		CharMap charmap = builder.build();
+		Map<String, Lexicon> lexicons = new HashMap<>();
+		Map<String, Long> letters = new HashMap<>();
+		for (Entry<String, List<String>> e : wordLists.entrySet()) {
+			lexicons.put(e.getKey(), new Dawg(e.getValue(), charmap));
+			long mask = 0;
+			for (String w : e.getValue()) {
+				for (int c : charmap.translate(w))
+					mask |= Trie.bit(c);
+			}
+			letters.put(e.getKey(), mask);
+		}
+		Pipe p = Grammar.parse(bnf);
+		p.attachTries(lexicons);
+		int terminals = 0;
+		for (Node n : p.in.connectedNodes()) {
+			if (!(n instanceof Terminal))
+				continue;
+			Terminal t = (Terminal) n;
+			terminals++;
+			switch (t.listName) {
+			case "a":
+				// a word of a then one of b
+				assertEquals(2, t.minToEnd);
+				assertEquals(7, t.maxToEnd);
+				assertEquals(letters.get("a") | letters.get("b"), t.reach);
+				break;
+			case "b":
+				assertEquals(1, t.minToEnd);
+				assertEquals(4, t.maxToEnd);
+				assertEquals((long) letters.get("b"), t.reach);
+				break;
+			default:
+				// any number of words of c
+				assertEquals(1, t.minToEnd);
+				assertEquals(Integer.MAX_VALUE, t.maxToEnd);
+				assertEquals((long) letters.get("c"), t.reach);
+			}
+		}
+		assertEquals(3, terminals);
+
+		// phrases that are too short, too long, or mix letters no path uses
+		// together find only what trying every sequence of words finds
+		for (String phrase : "x xab xc xyzabcd xyzabcdx abcd qq qqq xq cq".split(" ")) {
+			List<String> expected = new ArrayList<>();
+			for (String b : wordLists.get("b")) {
+				if (anagram(phrase, b))
+					expected.add(b);
+				for (String a : wordLists.get("a")) {
+					if (anagram(phrase, a, b))
+						expected.add(a + " " + b);
+				}
+			}
+			if (phrase.matches("q+")) {
+				// every sequence of words of c no longer than the phrase
+				List<String> ways = Arrays.asList("");
+				for (int i = 0; i < phrase.length(); i++) {
+					List<String> longer = new ArrayList<>();
+					for (String w : ways) {
+						for (String c : wordLists.get("c")) {
+							String v = (w + " " + c).trim();
+							if (anagram(phrase, v))
+								expected.add(v);
+							longer.add(v);
+						}
+					}
+					ways = longer;
+				}
+			}
+			List<String> found = collectMatches(phrase, bnf, wordLists, 0, false);
+			Collections.sort(expected);
+			Collections.sort(found);
+			assertEquals(phrase, expected, found);
+		}
+	}
+
+	/**
+	 * @return whether some word can be completed from a node with the
+	 *         characters given, found by trying every path
+	 */
+	private static boolean completes(Lexicon l, int node, CharCount cc) {
+		if (l.terminal(node))
+			return true;
+		for (int k = 0; k < l.children(node); k++) {
+			int c = l.edge(node, k);
+			if (cc.take(c)) {
+				boolean completes = completes(l, l.child(node, k), cc);
+				cc.restore(c);
+				if (completes)
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return whether the words use just the letters of the phrase
+	 */
+	private static boolean anagram(String phrase, String... words) {
+		char[] p = phrase.replace(" ", "").toCharArray();
+		char[] w = String.join("", words).replace(" ", "").toLowerCase().toCharArray();
+		Arrays.sort(p);
+		Arrays.sort(w);
+		return Arrays.equals(p, w);
+	}
+
+	@Test
+	public void deterministic() throws BadRuleException, RecursionException, MissingWordlistException {
+		// every phrase of two words can be derived in three ways
+		String[] bnf = new String[] { "TOP -> <a>{1,2} | <a> <a>? | <a>{2}" };
+		Map<String, List<String>> wordLists = new HashMap<>();
+		wordLists.put("a", Arrays.asList("ab", "ba", "a", "b"));
+		for (Node n : Grammar.parse(bnf).in.connectedNodes()) {
+			Set<String> lists = new HashSet<>();
+			for (Node o : n.edges) {
+				if (o instanceof Terminal)
+					assertTrue(lists.add(((Terminal) o).listName));
+			}
+		}
+		List<String> outputList = collectMatches("abab", bnf, wordLists, 0, false);
+		assertEquals(new TreeSet<>(outputList).size(), outputList.size());
+		assertEquals(4, outputList.size());
+	}
+
+	@Test
+	public void minimal() throws BadRuleException, RecursionException {
+		// the two <b> are equivalent, as are the two <c>{1,2}
+		Pipe p = Grammar.parse(new String[] { "TOP -> <a> <b> <c>{1,2} | <d> <b> <c>{1,2}" });
+		assertEquals(7, p.states());
+		assertEquals(8, p.edges());
+	}
+
+	@Test
+	public void loop() throws BadRuleException, RecursionException, MissingWordlistException {
+		String[] bnf = new String[] { "TOP -> <a>{2,6} <b> | <b>{0,5}" };
+		// the same thing written out
+		StringBuilder b = new StringBuilder("TOP -> <b> | <b> <b> | <b> <b> <b> | <b> <b> <b> <b> | <b> <b> <b> <b> <b>");
+		for (int i = 2; i <= 6; i++) {
+			b.append(" |");
+			for (int j = 0; j < i; j++)
+				b.append(" <a>");
+			b.append(" <b>");
+		}
+		String[] unrolled = new String[] { b.toString() };
+		// start, end, a loop for each repetition, and the final <b>
+		assertEquals(5, Grammar.parse(bnf).states());
+		Map<String, List<String>> wordLists = new HashMap<>();
+		wordLists.put("a", Arrays.asList("ab", "a", "b"));
+		wordLists.put("b", Arrays.asList("c", "cc", "a"));
+		Engine e = new Engine(1, 0, false, wordLists, Grammar.parse(bnf), new Builder());
+		for (String input : "aac aaaaaac aaaaaaac aabbbbc cccccc ccccccc".split(" ")) {
+			List<String> expected = collectMatches(input, unrolled, wordLists, 0, false);
+			List<String> plain = collectMatches(input, bnf, wordLists, 0, false, 0);
+			List<String> memoized = collectMatches(input, bnf, wordLists, 0, false, Engine.MEMO_CAPACITY);
+			Collections.sort(expected);
+			Collections.sort(plain);
+			Collections.sort(memoized);
+			assertEquals(expected, plain);
+			assertEquals(expected, memoized);
+			assertEquals(BigInteger.valueOf(expected.size()), e.count(input));
+		}
+	}
+
+	@Test
+	public void loopBeside() throws BadRuleException, RecursionException, MissingWordlistException {
+		// in each, a loop and a terminal for the same list can take the same
+		// word; each grammar is paired with the most <a> it allows
+		// word and the fewest and most <a> it allows, as far as the longest
+		// phrase tried
+		String[] grammars = { "TOP -> <a>{1,6} <a>?", "TOP -> <a>{1,6} | <a>", "TOP -> <a>{1,7} | <a>{2,5}",
+				"TOP -> <a> <a>{0,6}", "TOP -> <a>{6,} <a>?" };
+		int[] least = { 1, 1, 1, 1, 6 }, most = { 7, 6, 7, 7, 8 };
+		Map<String, List<String>> wordLists = new HashMap<>();
+		wordLists.put("a", Arrays.asList("x", "y"));
+		for (int g = 0; g < grammars.length; g++) {
+			// the same thing written out
+			StringBuilder b = new StringBuilder("TOP ->");
+			for (int i = least[g]; i <= most[g]; i++) {
+				if (i > least[g])
+					b.append(" |");
+				for (int j = 0; j < i; j++)
+					b.append(" <a>");
+			}
+			String[] bnf = new String[] { grammars[g] }, unrolled = new String[] { b.toString() };
+			Engine e = new Engine(1, 0, false, wordLists, Grammar.parse(bnf), new Builder());
+			for (String input : "x xx xy xxxxxx xxxxxxx xxxxxxxx".split(" ")) {
+				List<String> expected = collectMatches(input, unrolled, wordLists, 0, false);
+				List<String> found = collectMatches(input, bnf, wordLists, 0, false);
+				Collections.sort(expected);
+				Collections.sort(found);
+				assertEquals(grammars[g] + " on " + input, expected, found);
+				assertEquals(grammars[g] + " on " + input, BigInteger.valueOf(expected.size()), e.count(input));
+			}
+		}
+	}
+
+	@Test
+	public void loopFolded() throws BadRuleException, RecursionException, MissingWordlistException {
+		// repetitions of a single list through rules and other repetitions,
+		// each with the numbers of <a> it allows
+		String[][] grammars = { { "TOP -> ten{1,10} <b>", "ten -> <a>{1,10}" }, { "TOP -> one{6} <b>", "one -> <a>" },
+				{ "TOP -> opt{0,3} <b>", "opt -> <a>{2,3}" }, { "TOP -> three{0,4} <b>", "three -> <a>{3}" },
+				{ "TOP -> <a>{6,} <b>" }, { "TOP -> some{2,} <b>", "some -> <a>{3,5}" } };
+		List<IntPredicate> allowed = Arrays.asList(n -> n >= 1 && n <= 100, n -> n == 6, n -> n == 0 || n >= 2 && n <= 9,
+				n -> n % 3 == 0 && n <= 12, n -> n >= 6, n -> n >= 6);
+		// a loop and the final <b>, however large the bounds
+		assertEquals(4, Grammar.parse(grammars[0]).states());
+		assertEquals(4, Grammar.parse(grammars[4]).states());
+		Map<String, List<String>> wordLists = new HashMap<>();
+		wordLists.put("a", Arrays.asList("ab", "a", "b"));
+		wordLists.put("b", Arrays.asList("c", "cc", "a"));
+		String[] inputs = "ac aac aaaaac aaaaaac abababc aaaaaaaa aaaaaaac ababbac".split(" ");
+		for (int g = 0; g < grammars.length; g++) {
+			// the same thing written out as far as the longest phrase tried
+			StringBuilder b = new StringBuilder("TOP ->");
+			for (int i = 0; i <= 8; i++) {
+				if (!allowed.get(g).test(i))
+					continue;
+				if (b.length() > "TOP ->".length())
+					b.append(" |");
+				for (int j = 0; j < i; j++)
+					b.append(" <a>");
+				b.append(" <b>");
+			}
+			String[] unrolled = new String[] { b.toString() };
+			Engine e = new Engine(1, 0, false, wordLists, Grammar.parse(grammars[g]), new Builder());
+			for (String input : inputs) {
+				List<String> expected = collectMatches(input, unrolled, wordLists, 0, false);
+				List<String> found = collectMatches(input, grammars[g], wordLists, 0, false);
+				Collections.sort(expected);
+				Collections.sort(found);
+				assertEquals(grammars[g][0] + " on " + input, expected, found);
+				assertEquals(grammars[g][0] + " on " + input, BigInteger.valueOf(expected.size()), e.count(input));
+			}
+		}
+	}
+
+	@Test
+	public void serialized() throws Exception {
+		String[] bnf = new String[] { "TOP -> <a>{2,6} <b> | <b> <a>{1,2}" };
+		Map<String, List<String>> wordLists = new HashMap<>();
+		wordLists.put("a", Arrays.asList("ab", "a", "b"));
+		wordLists.put("b", Arrays.asList("c", "cc", "a"));
+		Pipe p = Grammar.parse(bnf);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		p.write(new DataOutputStream(bytes));
+		Pipe q = Pipe.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		assertEquals(p.states(), q.states());
+		assertEquals(p.edges(), q.edges());
+		assertEquals(p.compilation(), q.compilation());
+		List<String> expected = collectMatches("aaabc", bnf, wordLists, 0, false);
+		assertTrue(expected.size() > 0);
+		List<String> found = collectMatches("aaabc", q, wordLists, 0, false, Engine.MEMO_CAPACITY);
+		Collections.sort(expected);
+		Collections.sort(found);
+		assertEquals(expected, found);
+	}
+
+	@Test
+	public void indexed() throws Exception {
+		Map<String, List<String>> wordLists = wordLists();
+		// several surface forms of a word, and repeated letters, which give
+		// nodes need vectors
+		wordLists.get("a").addAll(Arrays.asList("Ab", "aab", "abba", "cabbage"));
+		wordLists.get("b").addAll(Arrays.asList("C", "bbb", "accede"));
+		File f = File.createTempFile("anagrammar", ".idx");
+		f.deleteOnExit();
+		LexiconIndex.compile(f, wordLists, new Builder());
+		LexiconIndex index = LexiconIndex.open(f, CharMap.BASIC_NORMALIZER);
+		CharMap charmap = index.charmap();
+		List<CharCount> counts = new ArrayList<>();
+		for (String phrase : "a ab abb abc aabbc abcabc cabbage bbbccc eedcab".split(" "))
+			counts.add(charmap.count(phrase));
+		for (Entry<String, List<String>> e : wordLists.entrySet()) {
+			Lexicon mapped = index.lexicons().get(e.getKey()), dawg = new Dawg(e.getValue(), charmap);
+			assertEquals(dawg.size(), mapped.size());
+			assertEquals(dawg.root(), mapped.root());
+			assertEquals(dawg.minLength(), mapped.minLength());
+			assertEquals(dawg.maxLength(), mapped.maxLength());
+			assertEquals(dawg.letters(), mapped.letters());
+			for (int node = 0; node < dawg.size(); node++) {
+				assertEquals(dawg.children(node), mapped.children(node));
+				for (int k = 0; k < dawg.children(node); k++) {
+					assertEquals(dawg.edge(node, k), mapped.edge(node, k));
+					assertEquals(dawg.child(node, k), mapped.child(node, k));
+					assertEquals(dawg.offset(node, k), mapped.offset(node, k));
+				}
+				assertEquals(dawg.terminal(node), mapped.terminal(node));
+				if (dawg.terminal(node))
+					assertEquals(dawg.entry(node), mapped.entry(node));
+				for (CharCount cc : counts)
+					assertEquals(cc + " at " + node, dawg.feasible(node, cc), mapped.feasible(node, cc));
+			}
+			Set<String> words = new TreeSet<>(), forms = new TreeSet<>();
+			words(mapped, mapped.root(), 0, words);
+			words(dawg, dawg.root(), 0, forms);
+			assertEquals(new TreeSet<>(e.getValue()), words);
+			assertEquals(forms, words);
+		}
+		Engine e = new Engine(1, 0, false, charmap, index.lexicons(), Grammar.parse(BNF));
+		for (String input : "abc aabbc abcabc".split(" ")) {
+			List<String> expected = collectMatches(input, BNF, wordLists, 0, false), found = new ArrayList<>();
+			e.run(input, wip -> {
+				for (List<String> phrase : wip.phrases())
+					found.add(String.join(" ", phrase));
+			});
+			Collections.sort(expected);
+			Collections.sort(found);
+			assertEquals(expected, found);
+		}
+
+		// the index records the files the lists came from and its normalizer
+		assertFalse(index.current("a", f));
+		Map<String, File> files = new HashMap<>();
+		for (String list : wordLists.keySet()) {
+			File source = File.createTempFile("anagrammar", ".txt");
+			source.deleteOnExit();
+			Files.write(source.toPath(), wordLists.get(list));
+			files.put(list, source);
+		}
+		LexiconIndex.compile(f, wordLists, files, new Builder());
+		index = LexiconIndex.open(f, CharMap.BASIC_NORMALIZER);
+		assertTrue(index.current("a", files.get("a")));
+		assertFalse(index.current("a", files.get("b")));
+		assertFalse(index.current("c", files.get("a")));
+		assertTrue(files.get("a").setLastModified(files.get("a").lastModified() - 10000));
+		assertFalse(index.current("a", files.get("a")));
+		assertTrue(files.get("b").delete());
+		assertFalse(index.current("b", files.get("b")));
+		try {
+			LexiconIndex.open(f, c -> c);
+			fail("opened with another normalizer");
+		} catch (IOException ex) {
+		}
+	}
+
+	@Test
+	public void memoized() throws BadRuleException, RecursionException, MissingWordlistException {
+		Map<String, List<String>> wordLists = wordLists();
+		for (String input : "abc aabbc abcabc".split(" ")) {
+			List<String> plain = collectMatches(input, BNF, wordLists, 0, false, 0);
+			List<String> memoized = collectMatches(input, BNF, wordLists, 0, false, Engine.MEMO_CAPACITY);
+			assertTrue(plain.size() > 0);
+			Collections.sort(plain);
+			Collections.sort(memoized);
+			assertEquals(plain, memoized);
+		}
+	}
+
+	@Test
+	public void count() throws BadRuleException, RecursionException, MissingWordlistException {
+		Map<String, List<String>> wordLists = wordLists();
+		// other surface forms of words already there
+		wordLists.get("a").add("Ab");
+		wordLists.get("b").add("C");
+		Engine e = new Engine(1, 0, false, wordLists, Grammar.parse(BNF), new Builder());
+		for (String input : "abc aabbc abcabc".split(" ")) {
+			List<String> all = collectMatches(input, BNF, wordLists, 0, false);
+			assertEquals(BigInteger.valueOf(all.size()), e.count(input));
+		}
+		assertEquals(BigInteger.ZERO, e.count("xyz"));
+	}
+
+	@Test
+	public void uniform() throws BadRuleException, RecursionException, MissingWordlistException {
+		Map<String, List<String>> wordLists = wordLists();
+		List<String> all = collectMatches("abc", BNF, wordLists, 0, false);
+		Collections.sort(all);
+		List<String> everything = collectMatches("abc", BNF, wordLists, all.size() + 1, true);
+		Collections.sort(everything);
+		assertEquals(all, everything);
+		List<String> some = collectMatches("abc", BNF, wordLists, 5, true);
+		assertEquals(5, some.size());
+		assertTrue(all.containsAll(some));
+		// however deep or shallow, each anagram is as likely to be drawn; a
+		// phrase derived in several ways is several anagrams
+		Map<String, Integer> derivations = new HashMap<>(), drawn = new HashMap<>();
+		for (String s : all)
+			derivations.merge(s, 1, Integer::sum);
+		int draws = 100 * all.size();
+		for (int i = 0; i < draws; i++)
+			drawn.merge(collectMatches("abc", BNF, wordLists, 1, true).get(0), 1, Integer::sum);
+		for (Map.Entry<String, Integer> e : derivations.entrySet()) {
+			int n = drawn.getOrDefault(e.getKey(), 0), m = e.getValue();
+			assertTrue(e.getKey() + " drawn " + n + " times", n > 50 * m && n < 150 * m);
+		}
+	}
+
+	@Test
+	public void dawg() {
+		// shared suffixes to merge, and capitals which are other surface forms
+		// of the same words
+		List<String> words = Arrays.asList("cat", "cats", "Cat", "bat", "bats", "rat", "at", "cart", "carts", "tar",
+				"star", "stars", "Stars", "a", "s");
+		Builder builder = new Builder();
+		builder.add(words);
+		CharMap charmap = builder.build();
+		Dawg dawg = new Dawg(words, charmap);
+		Trie trie = new Trie();
+		for (String w : words)
+			trie.add(w, charmap.translate(w), 0);
+		trie.done();
+
+		// every word has the same surface forms in both
+		Map<String, Set<String>> dawgForms = new TreeMap<>(), trieForms = new TreeMap<>();
+		List<Integer> numbers = new ArrayList<>();
+		entries(dawg, dawg.root(), 0, "", dawgForms, numbers);
+		entries(trie, trie.root(), 0, "", trieForms, new ArrayList<>());
+		assertEquals(trieForms, dawgForms);
+		assertEquals(13, dawgForms.size());
+
+		// a word's entry number is its rank in translation order, which is the
+		// order of a walk taking edges in order
+		for (int i = 0; i < numbers.size(); i++)
+			assertEquals(i, (int) numbers.get(i));
+
+		// there is one node for each distinct set of completions of a trie
+		// node, and no two nodes share one
+		Set<Set<String>> trieLanguages = new HashSet<>(), dawgLanguages = new HashSet<>();
+		for (int node = 0; node < trie.size(); node++)
+			trieLanguages.add(completions(trie, node));
+		for (int node = 0; node < dawg.size(); node++)
+			assertTrue("node " + node, dawgLanguages.add(completions(dawg, node)));
+		assertEquals(trieLanguages, dawgLanguages);
+		assertTrue(dawg.size() < trie.size());
+	}
+
+	/**
+	 * Map the translation of every word of a lexicon completed from a node to
+	 * its surface forms, noting entry numbers in the order found.
+	 */
+	private static void entries(Lexicon l, int node, int offset, String path, Map<String, Set<String>> forms,
+			List<Integer> numbers) {
+		if (l.terminal(node)) {
+			int entry = offset + l.entry(node);
+			numbers.add(entry);
+			Set<String> values = new TreeSet<>();
+			for (int k = 0; k < l.valueCount(entry); k++)
+				values.add(l.value(entry, k));
+			forms.put(path, values);
+		}
+		for (int k = 0; k < l.children(node); k++)
+			entries(l, l.child(node, k), offset + l.offset(node, k), path + (char) l.edge(node, k), forms, numbers);
+	}
+
+	/**
+	 * @return the translations of what can be completed from a node
+	 */
+	private static Set<String> completions(Lexicon l, int node) {
+		Set<String> set = new HashSet<>();
+		if (l.terminal(node))
+			set.add("");
+		for (int k = 0; k < l.children(node); k++) {
+			for (String s : completions(l, l.child(node, k)))
+				set.add((char) l.edge(node, k) + s);
+		}
+		return set;
+	}
+
+	@Test
+	public void projected() {
+		// every string of one to four of the letters a to f, and some in
+		// capitals, which are other surface forms of the same words
+		List<String> words = new ArrayList<>(), shorter = Arrays.asList("");
+		for (int length = 1; length <= 4; length++) {
+			List<String> longer = new ArrayList<>();
+			for (String w : shorter) {
+				for (char c = 'a'; c <= 'f'; c++)
+					longer.add(w + c);
+			}
+			words.addAll(longer);
+			shorter = longer;
+		}
+		for (String w : shorter) {
+			if (w.charAt(0) == 'a')
+				words.add(w.toUpperCase());
+		}
+		Builder builder = new Builder();
+		builder.add(words);
+		CharMap charmap = builder.build();
+		Projector projector = new Projector(new Dawg(words, charmap));
+		for (String phrase : "abc aabbcd fed f".split(" ")) {
+			Set<String> fit = new TreeSet<>();
+			for (String w : words) {
+				String rest = phrase;
+				for (char c : w.toLowerCase().toCharArray())
+					rest = rest.replaceFirst(String.valueOf(c), "");
+				if (rest.length() == phrase.length() - w.length())
+					fit.add(w);
+			}
+			Set<String> projected = new TreeSet<>();
+			Lexicon l = projector.project(charmap.count(phrase));
+			words(l, l.root(), 0, projected);
+			assertEquals(phrase, fit, projected);
+		}
+	}
+
+	@Test
+	public void packedCounts() {
+		Builder builder = new Builder();
+		builder.add(Arrays.asList("ab"));
+		CharMap charmap = builder.build();
+		StringBuilder phrase = new StringBuilder("b");
+		for (int i = 0; i < 200; i++)
+			phrase.append('a');
+		CharCount many = charmap.count(phrase.toString()), few = charmap.count("abb");
+		int a = charmap.translate("a")[0], b = charmap.translate("b")[0];
+		assertEquals(200, many.count(a));
+		assertEquals(2, few.count(b));
+		assertEquals(2, Long.bitCount(many.mask()));
+		// taking what is not there fails without touching the rest
+		assertTrue(many.take(b));
+		assertFalse(many.take(b));
+		assertTrue(few.take(a));
+		assertFalse(few.take(a));
+		assertEquals(2, few.count(b));
+		assertFalse(few.hasAll(many.mask() | few.mask()));
+		for (int i = 0; i < 200; i++)
+			many.take(a);
+		few.take(b);
+		many.restore(b);
+		assertEquals(few, many);
+		assertEquals(few.hashCode(), many.hashCode());
+		assertEquals(few.dup(), many.dup());
+
+		// in an alphabet too big to pack whole, counts with and without a
+		// character beyond those that can be packed
+		StringBuilder alphabet = new StringBuilder();
+		for (char c = 'a'; c <= 'z'; c++)
+			alphabet.append(c);
+		for (char c = '\u03b1'; c <= '\u03c9'; c++)
+			alphabet.append(c);
+		builder = new Builder();
+		builder.add(Arrays.asList(alphabet.toString(), "abcde"));
+		charmap = builder.build();
+		assertTrue(alphabet.length() > CharCount.PACKED);
+		int high = -1;
+		for (int i = 0; high == -1; i++) {
+			int t = charmap.translate(alphabet.substring(i, i + 1))[0];
+			if (t >= CharCount.PACKED)
+				high = t;
+		}
+		CharCount packed = charmap.count("abcdeabc"), mixed = packed.dup();
+		mixed.add(high);
+		assertEquals(0, packed.count(high));
+		assertEquals(1, mixed.count(high));
+		assertFalse(packed.take(high));
+		assertEquals(mixed.mask(), packed.mask() | (high < 64 ? 1L << high : 0));
+		assertFalse(packed.equals(mixed));
+		assertTrue(mixed.take(high));
+		assertEquals(packed, mixed);
+		assertEquals(packed.hashCode(), mixed.hashCode());
+		assertTrue(packed.covers(new int[alphabet.length()]));
+		a = charmap.translate("a")[0];
+		assertTrue(mixed.take(a));
+		assertTrue(packed.take(a));
+		assertEquals(packed, mixed);
+	}
+
+	/**
+	 * Add the surface forms of every word of a lexicon completed from a node.
+	 */
+	private static void words(Lexicon l, int node, int offset, Set<String> words) {
+		if (l.terminal(node)) {
+			int entry = offset + l.entry(node);
+			for (int k = 0; k < l.valueCount(entry); k++)
+				words.add(l.value(entry, k));
+		}
+		for (int k = 0; k < l.children(node); k++)
+			words(l, l.child(node, k), offset + l.offset(node, k), words);
+	}
+
+	@Test
+	public void limits() throws Exception {
+		Map<String, List<String>> wordLists = wordLists();
+		Engine e = new Engine(2, 0, false, wordLists, Grammar.parse(BNF), new Builder());
+		int all = collectMatches("abcabc", BNF, wordLists, 0, false).size();
+		Limits limits = new Limits();
+		assertEquals(all, e.run("abcabc", 0, false, limits, wip -> {
+		}));
+		assertEquals(Status.COMPLETE, limits.status());
+		limits = new Limits().results(3);
+		assertEquals(3, e.run("abcabc", 0, false, limits, wip -> {
+		}));
+		assertEquals(Status.RESULTS, limits.status());
+		limits = new Limits().expansions(1);
+		assertTrue(e.run("abcabc", 0, false, limits, wip -> {
+		}) <= all);
+		assertEquals(Status.EXPANSIONS, limits.status());
+		limits = new Limits();
+		limits.cancel();
+		assertEquals(0, e.run("abcabc", 0, false, limits, wip -> {
+		}));
+		assertEquals(Status.CANCELLED, limits.status());
+		// a slow handler would take 10ms for each anagram
+		limits = new Limits().timeout(50, TimeUnit.MILLISECONDS);
+		long start = System.nanoTime();
+		int n = e.run("abcabc", 0, false, limits, wip -> {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException ex) {
+			}
+		});
+		assertTrue(n < all);
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(all * 5));
+		assertEquals(Status.DEADLINE, limits.status());
+	}
+
+	@Test
+	public void failed() throws Exception {
+		List<String> letters = Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h", "i");
+		Builder builder = new Builder();
+		builder.add(letters);
+		CharMap charmap = builder.build();
+		// fails only once the search is too big to finish on the calling
+		// thread and has gone to the workers
+		Lexicon lexicon = new Dawg(letters, charmap) {
+			@Override
+			public int children(int node) {
+				if (Thread.currentThread() instanceof ForkJoinWorkerThread)
+					throw new IllegalStateException("worker");
+				return super.children(node);
+			}
+		};
+		Engine e = new Engine(2, 0, false, charmap, Collections.singletonMap("a", lexicon),
+				Grammar.parse(new String[] { "TOP -> <a>+" }));
+		Limits limits = new Limits();
+		try {
+			e.run("abcdefghi", 0, false, limits, wip -> {
+			});
+			fail("a worker's failure was lost");
+		} catch (IllegalStateException ex) {
+			assertEquals("worker", ex.getMessage());
+		}
+		assertEquals(Status.FAILED, limits.status());
+		Renderer renderer = (wip, out) -> {
+			out.write('\n');
+			return 1;
+		};
+		limits = new Limits();
+		try {
+			e.render("abcdefghi", 0, false, limits, renderer, new ByteArrayOutputStream());
+			fail("a worker's failure was lost");
+		} catch (IllegalStateException ex) {
+			assertEquals("worker", ex.getMessage());
+		}
+		assertEquals(Status.FAILED, limits.status());
+	}
+
+	@Test
+	public void streamed() throws Exception {
+		Map<String, List<String>> wordLists = wordLists();
+		Engine e = new Engine(1, 0, false, wordLists, Grammar.parse(BNF), new Builder());
+		// a memoized search delivers anagrams before it has solved every
+		// suffix problem, so some budget stops it partway
+		boolean partway = false;
+		for (long budget = 1;; budget *= 2) {
+			Limits limits = new Limits().expansions(budget);
+			int n = e.run("abcabc", 0, false, limits, wip -> {
+			});
+			if (limits.status() == Status.COMPLETE)
+				break;
+			partway |= n > 0;
+		}
+		assertTrue(partway);
+	}
+
+	@Test
+	public void publisher() throws Exception {
+		Map<String, List<String>> wordLists = wordLists();
+		Engine e = new Engine(4, 0, false, wordLists, Grammar.parse(BNF), new Builder());
+		int all = collectMatches("abcabc", BNF, wordLists, 0, false).size();
+		assertEquals(all, subscribe(e, "abcabc", Integer.MAX_VALUE));
+		assertEquals(2, subscribe(e, "abcabc", 2));
+	}
+
+	@Test
+	public void render() throws Exception {
+		Map<String, List<String>> wordLists = wordLists();
+		Engine e = new Engine(4, 0, false, wordLists, Grammar.parse(BNF), new Builder());
+		List<String> expected = collectMatches("abcabc", BNF, wordLists, 0, false);
+		Collections.sort(expected);
+		Renderer renderer = new Renderer() {
+			@Override
+			public int render(WorkInProgress wip, OutputBuffer out) {
+				for (String[] forms : wip.words()) {
+					out.write(forms[0]);
+					out.write(' ');
+				}
+				out.write('\n');
+				return 1;
+			}
+		};
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(expected.size(), e.render("abcabc", 0, false, renderer, out));
+		List<String> rendered = new ArrayList<>();
+		for (String line : out.toString("UTF-8").split("\n"))
+			rendered.add(line.trim());
+		Collections.sort(rendered);
+		assertEquals(expected, rendered);
+		out.reset();
+		assertEquals(3, e.render("abcabc", 3, false, renderer, out));
+	}
+
+	@Test
+	public void pooled() throws Exception {
+		Map<String, List<String>> wordLists = new HashMap<>();
+		wordLists.put("a", Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h"));
+		Engine e = new Engine(2, 0, false, wordLists, Grammar.parse(new String[] { "TOP -> <a>+" }), new Builder());
+		Thread caller = Thread.currentThread();
+		Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<>());
+		Set<ForkJoinPool> pools = Collections.newSetFromMap(new ConcurrentHashMap<>());
+		Renderer renderer = new Renderer() {
+			@Override
+			public int render(WorkInProgress wip, OutputBuffer out) {
+				threads.add(Thread.currentThread());
+				if (ForkJoinTask.inForkJoinPool())
+					pools.add(ForkJoinTask.getPool());
+				for (String[] forms : wip.words())
+					out.write(forms[0]);
+				out.write('\n');
+				return 1;
+			}
+		};
+		// a small search is done on the calling thread
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(6, e.render("abc", 0, false, renderer, out));
+		assertEquals(Collections.singleton(caller), threads);
+		assertTrue(pools.isEmpty());
+		assertEquals(6, e.run("abc", wip -> threads.add(Thread.currentThread())));
+		assertEquals(Collections.singleton(caller), threads);
+		// a big one is handed to the workers, which every search shares, and
+		// what was found before it was handed off is not repeated
+		for (int i = 0; i < 2; i++) {
+			out.reset();
+			assertEquals(40320, e.render("abcdefgh", 0, false, renderer, out));
+			List<String> lines = Arrays.asList(out.toString("UTF-8").split("\n"));
+			assertEquals(40320, lines.size());
+			assertEquals(40320, new HashSet<>(lines).size());
+		}
+		assertEquals(1, pools.size());
+		assertFalse(pools.contains(ForkJoinPool.commonPool()));
+		threads.clear();
+		assertEquals(40320, e.run("abcdefgh", wip -> threads.add(Thread.currentThread())));
+		assertEquals(Collections.singleton(caller), threads);
+		assertEquals(1, pools.size());
+	}
+
+	@Test
+	public void unique() throws Exception {
+		// the two lists are the same, so the alternatives overlap
+		String[] bnf = new String[] { "TOP -> <a>{1,2} <b> | <b> <a>{1,2}" };
+		Map<String, List<String>> wordLists = new HashMap<>();
+		wordLists.put("a", Arrays.asList("ab", "ba", "a", "b", "c", "abc", "bc"));
+		wordLists.put("b", wordLists.get("a"));
+		List<String> all = collectMatches("abcabc", bnf, wordLists, 0, false);
+		List<String> distinct = new ArrayList<>(new TreeSet<>(all));
+		assertTrue(distinct.size() < all.size());
+		// the second budget is small enough that phrases go to disk
+		for (long budget : new long[] { PhraseSet.BUDGET, 1 }) {
+			List<String> found = new ArrayList<>();
+			try (PhraseSet seen = new PhraseSet(budget)) {
+				for (String phrase : all) {
+					String[] words = phrase.split(" ");
+					int[] ids = new int[words.length];
+					for (int i = 0; i < words.length; i++)
+						ids[i] = seen.id(words[i]);
+					if (seen.add(ids, ids.length))
+						found.add(phrase);
+				}
+				seen.drain(found::add);
+			}
+			Collections.sort(found);
+			assertEquals(distinct, found);
+		}
+	}
+
+	@Test
+	public void batched() throws Exception {
+		String[] bnf = new String[] { "TOP -> <a>+" };
+		Map<String, List<String>> wordLists = new HashMap<>();
+		wordLists.put("a", Arrays.asList("ab", "ba", "a", "b", "c"));
+		Engine e = new Engine(2, 0, false, wordLists, Grammar.parse(bnf), new Builder());
+		// q is in no word list; the last is long enough to be searched in
+		// parallel
+		List<String> phrases = Arrays.asList("ab", "cab", "B A", "q", "ba", "abc", "c", "cabcabcab");
+		for (int sample : new int[] { 0, 2 }) {
+			Map<List<Integer>, List<String>> found = new HashMap<>();
+			e.batch(phrases, sample, false, new BatchHandler() {
+				private final ThreadLocal<List<String>> anagrams = new ThreadLocal<>();
+
+				@Override
+				public OutputHandler handler(int[] group) {
+					List<String> list = new ArrayList<>();
+					anagrams.set(list);
+					return wip -> {
+						for (List<String> phrase : wip.phrases())
+							list.add(String.join(" ", phrase));
+					};
+				}
+
+				@Override
+				public void done(int[] group, int n) {
+					// on the thread that handled the anagrams
+					List<String> list = anagrams.get();
+					assertEquals(list.size(), n);
+					List<Integer> indices = new ArrayList<>();
+					for (int i : group)
+						indices.add(i);
+					synchronized (found) {
+						assertEquals(null, found.put(indices, list));
+					}
+				}
+			});
+			// each set of letters is searched once, for all the phrases with
+			// them, which are given in order
+			assertEquals(new TreeSet<>(Arrays.asList("[0, 2, 4]", "[1, 5]", "[3]", "[6]", "[7]")),
+					new TreeSet<>(found.keySet().stream().map(Object::toString).collect(Collectors.toList())));
+			for (Entry<List<Integer>, List<String>> entry : found.entrySet()) {
+				List<String> expected = collectMatches(phrases.get(entry.getKey().get(0)), bnf, wordLists, 0, false);
+				List<String> anagrams = entry.getValue();
+				if (sample > 0) {
+					assertEquals(Math.min(sample, expected.size()), anagrams.size());
+					assertTrue(expected.containsAll(anagrams));
+				} else {
+					Collections.sort(expected);
+					Collections.sort(anagrams);
+					assertEquals(expected, anagrams);
+				}
+			}
+		}
+		assertFalse(e.running());
+	}
+
+	/**
+	 * Request anagrams one at a time, cancelling after the given number.
+	 * 
+	 * @return the number received
+	 */
+	private int subscribe(Engine e, String input, int limit) throws InterruptedException {
+		CountDownLatch done = new CountDownLatch(1);
+		AtomicInteger received = new AtomicInteger();
+		e.publisher(input, 0, false).subscribe(new Flow.Subscriber<WorkInProgress>() {
+			private Flow.Subscription subscription;
+
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				this.subscription = subscription;
+				subscription.request(1);
+			}
+
+			@Override
+			public void onNext(WorkInProgress item) {
+				if (received.incrementAndGet() == limit) {
+					subscription.cancel();
+					done.countDown();
+				} else {
+					subscription.request(1);
+				}
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				done.countDown();
+			}
+
+			@Override
+			public void onComplete() {
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		Thread.sleep(50); // nothing more should arrive
+		return received.get();
+	}
+
 	private List<String> collectMatches(String input, String[] bnf, Map<String, List<String>> wordLists, int sample,
 			boolean random) throws BadRuleException, RecursionException, MissingWordlistException {
-		Pipe p = Grammar.parse(bnf);
+		return collectMatches(input, bnf, wordLists, sample, random, Engine.MEMO_CAPACITY);
+	}
+
+	private List<String> collectMatches(String input, String[] bnf, Map<String, List<String>> wordLists, int sample,
+			boolean random, int memo) throws BadRuleException, RecursionException, MissingWordlistException {
+		return collectMatches(input, Grammar.parse(bnf), wordLists, sample, random, memo);
+	}
+
+	private List<String> collectMatches(String input, Pipe p, Map<String, List<String>> wordLists, int sample,
+			boolean random, int memo) throws MissingWordlistException {
 		Builder b = new Builder();
 		Engine e = new Engine(1, sample, random, wordLists, p, b);
+		e.memoize(memo);
 		List<String> outputList = new ArrayList<>();
 		e.run(input, new OutputHandler() {
 			@Override
@@ -0,0 +1,105 @@
+package dfh.anagrammar.ui;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import dfh.anagrammar.CharMap.Builder;
+import dfh.anagrammar.Engine;
+import dfh.anagrammar.PhraseSet;
+import dfh.anagrammar.grammar.Grammar;
+
+public class BatchPrinterTest {
+	/**
+	 * q is in no word list; ab can be had two ways
+	 */
+	private static final List<String> PHRASES = Arrays.asList("cab", "ab", "q", "B A", "abc", "ba", "c");
+
+	@Test
+	public void ordered() throws Exception {
+		List<String> lines = print(true, 0);
+		// each phrase's anagrams together, in the order of the phrases
+		List<String> tags = new ArrayList<>();
+		for (String line : lines) {
+			String tag = line.substring(0, line.indexOf('\t'));
+			if (tags.isEmpty() || !tags.get(tags.size() - 1).equals(tag))
+				tags.add(tag);
+		}
+		assertEquals(Arrays.asList("cab", "ab", "B A", "abc", "ba", "c"), tags);
+		// the same lines as unordered
+		List<String> unordered = print(false, 0);
+		Collections.sort(lines);
+		Collections.sort(unordered);
+		assertEquals(unordered, lines);
+	}
+
+	@Test
+	public void tagged() throws Exception {
+		for (boolean ordered : new boolean[] { false, true }) {
+			List<String> lines = print(ordered, 0);
+			Collections.sort(lines);
+			// phrases with the same letters share a search but each is
+			// tagged with its own anagrams
+			assertEquals(Arrays.asList("B A\ta b", "B A\tab", "B A\tab", "B A\tb a", "ab\ta b", "ab\tab", "ab\tab",
+					"ab\tb a", "ba\ta b", "ba\tab", "ba\tab", "ba\tb a"), grep(lines, "B A", "ab", "ba"));
+			assertEquals(Arrays.asList("c\tc"), grep(lines, "c"));
+			lines = print(ordered, PhraseSet.BUDGET);
+			Collections.sort(lines);
+			assertEquals(Arrays.asList("ab\ta b", "ab\tab", "ab\tb a"), grep(lines, "ab"));
+		}
+	}
+
+	@Test
+	public void found() throws Exception {
+		// all printed, counting each phrase sharing a search
+		assertEquals(print(false, 0).size(), printer(false, 0).found());
+		assertEquals(print(true, PhraseSet.BUDGET).size(), printer(true, PhraseSet.BUDGET).found());
+	}
+
+	private static List<String> grep(List<String> lines, String... tags) {
+		List<String> found = new ArrayList<>();
+		for (String line : lines) {
+			for (String tag : tags) {
+				if (line.startsWith(tag + '\t'))
+					found.add(line);
+			}
+		}
+		return found;
+	}
+
+	private static List<String> print(boolean ordered, long budget) throws Exception {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		batch(new BatchPrinter(new PrintStream(b, true, "UTF-8"), PHRASES, budget, ordered));
+		List<String> lines = new ArrayList<>();
+		for (String line : b.toString("UTF-8").split("\n")) {
+			if (!line.isEmpty())
+				lines.add(line);
+		}
+		return lines;
+	}
+
+	private static BatchPrinter printer(boolean ordered, long budget) throws Exception {
+		BatchPrinter printer = new BatchPrinter(new PrintStream(new ByteArrayOutputStream(), true, "UTF-8"), PHRASES,
+				budget, ordered);
+		batch(printer);
+		return printer;
+	}
+
+	private static void batch(BatchPrinter printer) throws Exception {
+		Map<String, List<String>> wordLists = new HashMap<>();
+		wordLists.put("a", Arrays.asList("ab", "a", "b", "c"));
+		wordLists.put("b", Arrays.asList("ab"));
+		Engine e = new Engine(2, 0, false, wordLists, Grammar.parse(new String[] { "TOP -> <a>+ | <b>" }),
+				new Builder());
+		e.batch(PHRASES, 0, false, printer);
+	}
+}
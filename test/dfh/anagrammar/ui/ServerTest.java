@@ -0,0 +1,172 @@
+package dfh.anagrammar.ui;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import dfh.anagrammar.CharMap;
+import dfh.anagrammar.CharMap.Builder;
+import dfh.anagrammar.Dawg;
+import dfh.anagrammar.Engine;
+import dfh.anagrammar.Lexicon;
+import dfh.anagrammar.grammar.Grammar;
+
+public class ServerTest {
+	private static Engine letters;
+	private static Server server;
+
+	@BeforeClass
+	public static void start() throws Exception {
+		Map<String, List<String>> wordLists = new HashMap<>();
+		wordLists.put("a", Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h", "i", "j", "k", "l"));
+		wordLists.put("c", Arrays.asList("ab", "ba"));
+		wordLists.put("d", Arrays.asList("ab"));
+		Map<String, Engine> engines = new HashMap<>();
+		letters = new Engine(2, -1, false, wordLists, Grammar.parse(new String[] { "TOP -> <a>+" }), new Builder());
+		engines.put("letters", letters);
+		// ab can be had two ways
+		engines.put("twice",
+				new Engine(2, -1, false, wordLists, Grammar.parse(new String[] { "TOP -> <c> | <d>" }), new Builder()));
+		// every search fails
+		List<String> words = Arrays.asList("a", "b");
+		Builder builder = new Builder();
+		builder.add(words);
+		CharMap charmap = builder.build();
+		Lexicon broken = new Dawg(words, charmap) {
+			@Override
+			public int children(int node) {
+				throw new IllegalStateException("broken");
+			}
+		};
+		engines.put("broken", new Engine(2, -1, false, charmap, Collections.singletonMap("a", broken),
+				Grammar.parse(new String[] { "TOP -> <a>+" })));
+		server = new Server(engines, "letters", 0);
+		server.start();
+	}
+
+	@AfterClass
+	public static void stop() {
+		server.stop();
+	}
+
+	@Test
+	public void parameters() throws IOException {
+		assertEquals(400, status("GET", ""));
+		assertEquals(400, status("GET", "phrase=+"));
+		assertEquals(404, status("GET", "phrase=ab&grammar=none"));
+		assertEquals(400, status("GET", "phrase=ab&sample=0"));
+		assertEquals(400, status("GET", "phrase=ab&sample=many"));
+		assertEquals(400, status("GET", "phrase=ab&timeout=-5"));
+		assertEquals(405, status("POST", "phrase=ab"));
+		assertEquals(200, status("GET", "phrase=ab&grammar=twice&sample=1&random&unique=1&timeout=100"));
+
+		assertEquals(3, get("phrase=ab&grammar=twice").size());
+		assertEquals(Arrays.asList("ab", "ba"), sorted(get("phrase=ab&grammar=twice&unique=true")));
+		assertEquals(2, get("phrase=abcdef&sample=2").size());
+		assertEquals(2, get("phrase=abcdef&sample=2&random=true").size());
+		assertEquals(Arrays.asList("a b", "b a"), sorted(get("phrase=+b+a+")));
+	}
+
+	@Test
+	public void streamed() throws IOException {
+		// many times the anagrams the server asks for at once
+		List<String> found = get("phrase=abcdefg");
+		assertEquals(5040, found.size());
+		assertEquals(5040, new HashSet<>(found).size());
+		for (String anagram : found) {
+			char[] c = anagram.replace(" ", "").toCharArray();
+			Arrays.sort(c);
+			assertEquals("abcdefg", new String(c));
+		}
+		// far too many to find in time
+		assertTrue(get("phrase=abcdefghijkl&timeout=50").size() < 479001600);
+	}
+
+	@Test
+	public void abandoned() throws Exception {
+		try (Socket s = new Socket(server.address().getAddress(), server.address().getPort())) {
+			OutputStream out = s.getOutputStream();
+			out.write("GET /anagrams?phrase=abcdefghijkl HTTP/1.1\r\nHost: localhost\r\n\r\n"
+					.getBytes(StandardCharsets.US_ASCII));
+			out.flush();
+			BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+			assertTrue(in.readLine().contains("200"));
+			while (!in.readLine().isEmpty())
+				; // the headers
+			in.readLine();
+		}
+		// finding every anagram would take many minutes
+		long deadline = System.currentTimeMillis() + 10000;
+		while (letters.running() && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertFalse(letters.running());
+	}
+
+	@Test
+	public void failed() throws Exception {
+		HttpURLConnection c = connect("phrase=ab&grammar=broken");
+		assertEquals(200, c.getResponseCode());
+		try (BufferedReader in = new BufferedReader(
+				new InputStreamReader(c.getInputStream(), StandardCharsets.UTF_8))) {
+			while (in.readLine() != null)
+				;
+			fail("the response was ended as though the search had succeeded");
+		} catch (IOException e) {
+			// cut short
+		}
+	}
+
+	private static int status(String method, String query) throws IOException {
+		HttpURLConnection c = connect(query);
+		c.setRequestMethod(method);
+		try {
+			return c.getResponseCode();
+		} finally {
+			c.disconnect();
+		}
+	}
+
+	private static List<String> get(String query) throws IOException {
+		HttpURLConnection c = connect(query);
+		assertEquals(200, c.getResponseCode());
+		List<String> lines = new ArrayList<>();
+		try (BufferedReader in = new BufferedReader(
+				new InputStreamReader(c.getInputStream(), StandardCharsets.UTF_8))) {
+			for (String line = in.readLine(); line != null; line = in.readLine())
+				lines.add(line);
+		}
+		return lines;
+	}
+
+	private static HttpURLConnection connect(String query) throws IOException {
+		URL url = new URL("http", server.address().getHostString(), server.address().getPort(),
+				"/anagrams?" + query);
+		return (HttpURLConnection) url.openConnection();
+	}
+
+	private static List<String> sorted(List<String> list) {
+		list.sort(null);
+		return list;
+	}
+}